@@ -11,22 +11,32 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.net.URL;
 import java.sql.Blob;
 import java.sql.Clob;
 import java.sql.NClob;
 import java.time.temporal.Temporal;
 import java.time.temporal.TemporalAmount;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
@@ -62,6 +72,14 @@ public abstract class StandardService<E, ID extends Serializable> {
 	 * 手动校验
 	 */
 	protected static final Validator VALIDATOR;
+	/**
+	 * 批量校验时，元素数量达到此值才使用并行校验，数量较少时线程调度的开销反而更大
+	 */
+	protected static final int PARALLEL_VALIDATION_THRESHOLD = 1000;
+	/**
+	 * 批量校验所用的有界线程池，并行度与CPU核数一致，VALIDATOR本身是线程安全的
+	 */
+	private static final ForkJoinPool VALIDATION_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 	/**
 	 * 日志
 	 */
@@ -72,6 +90,30 @@ public abstract class StandardService<E, ID extends Serializable> {
 		VALIDATOR = factory.getValidator();
 	}
 
+	/**
+	 * 若能从泛型声明中分析出实体类型，则在构造时预热该实体的约束元数据
+	 */
+	public StandardService() {
+		Type genericSuperclass = getClass().getGenericSuperclass();
+		if (genericSuperclass instanceof ParameterizedType) {
+			Type[] arguments = ((ParameterizedType) genericSuperclass).getActualTypeArguments();
+			if (arguments.length > 0 && arguments[0] instanceof Class) {
+				warmUp((Class<?>) arguments[0]);
+			}
+		}
+	}
+
+	/**
+	 * 预热实体类的约束元数据，校验器会缓存分析结果，避免首次校验时才进行反射分析
+	 * 
+	 * @param entityClasses 需要预热的实体类
+	 */
+	public static void warmUp(Class<?>... entityClasses) {
+		for (Class<?> entityClass : entityClasses) {
+			VALIDATOR.getConstraintsForClass(entityClass);
+		}
+	}
+
 	/**
 	 * 创建一个实体
 	 * 
@@ -154,6 +196,66 @@ public abstract class StandardService<E, ID extends Serializable> {
 		}
 	}
 
+	/**
+	 * 批量校验对象是否符合约束条件，与validate不同，本方法不抛出异常，而是返回每个不合格元素的违规信息
+	 * 
+	 * @param entities 被校验的实体对象集合，其中的null元素不做校验
+	 * @param groups 校验分组，不指定则使用默认分组
+	 * @return key是元素在集合迭代顺序中的序号，value是该元素的违规信息，全部合格则返回空Map
+	 */
+	public Map<Integer, Set<ConstraintViolation<E>>> validateAll(Collection<E> entities, Class<?>... groups) {
+		return validateAll(entities, 0, groups);
+	}
+
+	/**
+	 * 批量校验对象是否符合约束条件，元素数量达到PARALLEL_VALIDATION_THRESHOLD时在有界线程池中并行校验
+	 * 
+	 * @param entities 被校验的实体对象集合，其中的null元素不做校验
+	 * @param maxFailures 不合格元素达到此数量后停止校验，小于等于0表示全部校验；并行时记录的是最先发现的不合格元素，未必是序号最小的
+	 * @param groups 校验分组，不指定则使用默认分组
+	 * @return key是元素在集合迭代顺序中的序号，value是该元素的违规信息，按序号排序
+	 */
+	public Map<Integer, Set<ConstraintViolation<E>>> validateAll(Collection<E> entities, int maxFailures, Class<?>... groups) {
+		Map<Integer, Set<ConstraintViolation<E>>> result = new ConcurrentSkipListMap<Integer, Set<ConstraintViolation<E>>>();
+		if (entities == null || entities.isEmpty()) {
+			return result;
+		}
+		List<E> ls = entities instanceof List && entities instanceof RandomAccess ? (List<E>) entities : new ArrayList<E>(entities);
+		AtomicInteger failures = new AtomicInteger();
+		IntConsumer task = i -> {
+			if (maxFailures > 0 && failures.get() >= maxFailures) {
+				return;
+			}
+			E entity = ls.get(i);
+			if (entity == null) {
+				return;
+			}
+			Set<ConstraintViolation<E>> violations = VALIDATOR.validate(entity, groups);
+			if (!violations.isEmpty() && (maxFailures <= 0 || failures.incrementAndGet() <= maxFailures)) {
+				result.put(i, violations);
+			}
+		};
+		if (ls.size() < PARALLEL_VALIDATION_THRESHOLD) {
+			for (int i = 0; i < ls.size(); i++) {
+				task.accept(i);
+			}
+		} else {
+			try {
+				VALIDATION_POOL.submit(() -> IntStream.range(0, ls.size()).parallel().forEach(task)).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InnerDataStateException(e);
+			} catch (ExecutionException e) {
+				LOG.catching(e);
+				throw new InnerDataStateException(e.getCause());
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("{} of {} entities failed validation", result.size(), ls.size());
+		}
+		return result;
+	}
+
 	/**
 	 * 判断字符串是否存在文本 
 	 * <p>hasText(null) = false</p>
@@ -1,9 +1,18 @@
 package com.github.emailtohl.pad.jpa;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+
+import com.github.emailtohl.pad.jpa.AuditedRepository.PropertyDiff;
+import com.github.emailtohl.pad.jpa.AuditedRepository.RevHeader;
 import com.github.emailtohl.pad.jpa.AuditedRepository.RevTuple;
+import com.github.emailtohl.pad.jpa.AuditedRepository.RollbackReport;
 
 /**
  * 查询实体对象历史修订版的接口
@@ -23,6 +32,33 @@ public interface AuditedInterface<E, ID extends Serializable> extends SearchInte
 	 */
 	List<RevTuple<E>> getRevisions(ID id);
 
+	/**
+	 * 分页查询某个实体的历次修订版本，按修订号升序排列
+	 * 
+	 * @param id 实体对象的id
+	 * @param pageable 分页信息
+	 * @return 当前页的修订版本
+	 */
+	Page<RevTuple<E>> getRevisions(ID id, Pageable pageable);
+
+	/**
+	 * 查询某个实体在修订号区间内的修订记录，不加载历史实体
+	 * 
+	 * @param id 实体对象的id
+	 * @param from 起始修订号（含），为null时不限
+	 * @param to 结束修订号（含），为null时不限
+	 * @return 按修订号升序排列的修订记录
+	 */
+	List<RevHeader> getRevisionHeaders(ID id, Number from, Number to);
+
+	/**
+	 * 批量查询多个实体的历次修订版本
+	 * 
+	 * @param ids 实体对象的id
+	 * @return 按id分组，每组按修订号升序排列
+	 */
+	Map<ID, List<RevTuple<E>>> getRevisions(Collection<ID> ids);
+
 	/**
 	 * 查询某个实体在某个修订版时的历史记录
 	 * 
@@ -32,6 +68,25 @@ public interface AuditedInterface<E, ID extends Serializable> extends SearchInte
 	 */
 	E getEntityAtRevision(ID id, Number revision);
 
+	/**
+	 * 批量查询多个实体在某个修订版时的历史记录
+	 * 
+	 * @param ids 实体的id
+	 * @param revision 版本号
+	 * @return 按id分组，该修订版时不存在的实体不包含在内
+	 */
+	Map<ID, E> getEntitiesAtRevision(Collection<ID> ids, Number revision);
+
+	/**
+	 * 比较实体在两个修订版时的属性，只返回有变化的属性
+	 * 
+	 * @param id 实体的id
+	 * @param fromRev 起始修订号
+	 * @param toRev 结束修订号
+	 * @return 有变化的属性
+	 */
+	List<PropertyDiff> diff(ID id, Number fromRev, Number toRev);
+
 	/**
 	 * 将实体回滚到某历史版本上
 	 * 
@@ -39,4 +94,13 @@ public interface AuditedInterface<E, ID extends Serializable> extends SearchInte
 	 * @param revision 修订号
 	 */
 	void rollback(ID id, Number revision);
+
+	/**
+	 * 将多个实体回滚到某一时刻的状态
+	 * 
+	 * @param ids 实体的id
+	 * @param pointInTime 回滚到的时刻
+	 * @return 已回滚和被跳过的实体id
+	 */
+	RollbackReport<ID> rollbackAll(Collection<ID> ids, Date pointInTime);
 }
@@ -1,17 +1,50 @@
 package com.github.emailtohl.pad.jpa;
 
 import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.Embeddable;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
 
 import org.hibernate.ReplicationMode;
 import org.hibernate.Session;
 import org.hibernate.envers.AuditReader;
 import org.hibernate.envers.AuditReaderFactory;
+import org.hibernate.envers.Audited;
 import org.hibernate.envers.DefaultRevisionEntity;
+import org.hibernate.envers.NotAudited;
 import org.hibernate.envers.RevisionType;
+import org.hibernate.envers.exception.RevisionDoesNotExistException;
 import org.hibernate.envers.query.AuditEntity;
 import org.hibernate.envers.query.AuditQuery;
+import org.hibernate.envers.query.criteria.AuditDisjunction;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.data.domain.Pageable;
+
+import com.github.emailtohl.pad.exception.InnerDataStateException;
+import com.github.emailtohl.pad.util.LruCache;
 
 /**
  * 获取实体历史信息 需要为实体及其关联类添加上org.hibernate.envers.Audited注解
@@ -22,6 +55,16 @@ import org.hibernate.envers.query.AuditQuery;
  */
 public abstract class AuditedRepository<E, ID extends Serializable> extends SearchRepository<E, ID>
 		implements AuditedInterface<E, ID> {
+	/** 按id批量查询时每条IN语句中id的最大数量 */
+	private static final int AUDIT_IN_CHUNK_SIZE = 500;
+	/** 以(EntityManagerFactory, 实体类)为键的历史版本缓存，缓存的键为(id, 修订号)或(id, 起始修订号, 结束修订号) */
+	private static final ConcurrentHashMap<List<Object>, LruCache<List<Object>, Object>> REVISION_CACHES = new ConcurrentHashMap<List<Object>, LruCache<List<Object>, Object>>();
+	/** 各EntityManagerFactory已知的最大修订号，不大于它的修订版不会再变化 */
+	private static final ConcurrentHashMap<EntityManagerFactory, AtomicLong> MAX_REVISIONS = new ConcurrentHashMap<EntityManagerFactory, AtomicLong>();
+	/** 批量回滚时JDBC批处理的大小，也是刷新并清空持久化上下文的间隔 */
+	protected int rollbackBatchSize = 100;
+	/** 历史版本缓存的条目数，为0时不缓存 */
+	protected int revisionCacheSize = 0;
 
 	public AuditedRepository() {
 	}
@@ -30,6 +73,21 @@ public abstract class AuditedRepository<E, ID extends Serializable> extends Sear
 		super(entityClass, idClass, onFields);
 	}
 
+	public void setRollbackBatchSize(int rollbackBatchSize) {
+		this.rollbackBatchSize = rollbackBatchSize;
+	}
+
+	/**
+	 * 开启后，getOwnPropertiesAtRevision对已成为历史的修订版使用缓存，
+	 * getRevisionHeaders在修订号区间有上界且已成为历史时也会被缓存。
+	 * 缓存不改变这些方法的返回值，getEntityAtRevision等返回完整快照的方法不使用缓存。需在初始化前设置。
+	 * 
+	 * @param revisionCacheSize 历史版本缓存的条目数，为0时不缓存
+	 */
+	public void setRevisionCacheSize(int revisionCacheSize) {
+		this.revisionCacheSize = revisionCacheSize;
+	}
+
 	/**
 	 * 查询某个实体的历次修订版本
 	 * 
@@ -52,6 +110,101 @@ public abstract class AuditedRepository<E, ID extends Serializable> extends Sear
 		return ls;
 	}
 
+	/**
+	 * 分页查询某个实体的历次修订版本，按修订号升序排列，分页在审计查询中完成
+	 * 
+	 * @param id 实体对象的id
+	 * @param pageable 分页信息，排序条件会被忽略
+	 * @return 当前页的修订版本
+	 */
+	@SuppressWarnings("unchecked")
+	public Page<RevTuple<E>> getRevisions(ID id, Pageable pageable) {
+		AuditReader auditReader = AuditReaderFactory.get(entityManager);
+		Number total = (Number) auditReader.createQuery().forRevisionsOfEntity(entityClass, false, true)
+				.add(AuditEntity.id().eq(id)).addProjection(AuditEntity.revisionNumber().count()).getSingleResult();
+		List<RevTuple<E>> ls = new ArrayList<RevTuple<E>>();
+		if (total.longValue() > pageable.getOffset()) {
+			AuditQuery query = auditReader.createQuery().forRevisionsOfEntity(entityClass, false, true)
+					.add(AuditEntity.id().eq(id)).addOrder(AuditEntity.revisionNumber().asc())
+					.setFirstResult((int) pageable.getOffset()).setMaxResults(pageable.getPageSize());
+			for (Object[] o : (List<Object[]>) query.getResultList()) {
+				ls.add(new RevTuple<E>((E) o[0], (DefaultRevisionEntity) o[1], (RevisionType) o[2]));
+			}
+		}
+		return new PageImpl<RevTuple<E>>(ls, pageable, total.longValue());
+	}
+
+	/**
+	 * 查询某个实体在修订号区间内的修订记录，只投影修订号、时间戳和修改类型，不加载历史实体
+	 * 
+	 * @param id 实体对象的id
+	 * @param from 起始修订号（含），为null时不限
+	 * @param to 结束修订号（含），为null时不限
+	 * @return 按修订号升序排列的修订记录
+	 */
+	@SuppressWarnings("unchecked")
+	public List<RevHeader> getRevisionHeaders(ID id, Number from, Number to) {
+		LruCache<List<Object>, Object> cache = getRevisionCache();
+		if (cache == null || to == null || !isHistorical(to)) {
+			return loadRevisionHeaders(id, from, to);
+		}
+		List<Object> key = Arrays.asList(id, from == null ? null : from.longValue(), to.longValue());
+		List<RevHeader> headers = (List<RevHeader>) cache.computeIfAbsent(key,
+				k -> Collections.unmodifiableList(loadRevisionHeaders(id, from, to)));
+		return new ArrayList<RevHeader>(headers);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<RevHeader> loadRevisionHeaders(ID id, Number from, Number to) {
+		AuditReader auditReader = AuditReaderFactory.get(entityManager);
+		AuditQuery query = auditReader.createQuery().forRevisionsOfEntity(entityClass, false, true)
+				.add(AuditEntity.id().eq(id)).addProjection(AuditEntity.revisionNumber())
+				.addProjection(AuditEntity.revisionProperty("timestamp")).addProjection(AuditEntity.revisionType())
+				.addOrder(AuditEntity.revisionNumber().asc());
+		if (from != null) {
+			query.add(AuditEntity.revisionNumber().ge(from));
+		}
+		if (to != null) {
+			query.add(AuditEntity.revisionNumber().le(to));
+		}
+		List<RevHeader> ls = new ArrayList<RevHeader>();
+		for (Object[] o : (List<Object[]>) query.getResultList()) {
+			ls.add(new RevHeader(((Number) o[0]).intValue(), ((Number) o[1]).longValue(), (RevisionType) o[2]));
+		}
+		return ls;
+	}
+
+	/**
+	 * 批量查询多个实体的历次修订版本，每AUDIT_IN_CHUNK_SIZE个id合为一次审计查询。
+	 * id先转换为实体的id类型再查询和分组，如Integer类型的id也能匹配Long类型的实体id。
+	 * 
+	 * @param ids 实体对象的id
+	 * @return 按ids的顺序分组，每组按修订号升序排列，没有修订版本的id对应空列表
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<ID, List<RevTuple<E>>> getRevisions(Collection<ID> ids) {
+		Map<ID, List<RevTuple<E>>> map = new LinkedHashMap<ID, List<RevTuple<E>>>();
+		Map<Object, List<RevTuple<E>>> byId = new LinkedHashMap<Object, List<RevTuple<E>>>();
+		for (ID id : ids) {
+			map.put(id, byId.computeIfAbsent(toIdType(id), k -> new ArrayList<RevTuple<E>>()));
+		}
+		AuditReader auditReader = AuditReaderFactory.get(entityManager);
+		List<Object> list = new ArrayList<Object>(byId.keySet());
+		for (int i = 0; i < list.size(); i += AUDIT_IN_CHUNK_SIZE) {
+			AuditQuery query = auditReader.createQuery().forRevisionsOfEntity(entityClass, false, true)
+					.add(AuditEntity.id().in(list.subList(i, Math.min(i + AUDIT_IN_CHUNK_SIZE, list.size()))))
+					.addOrder(AuditEntity.revisionNumber().asc());
+			for (Object[] o : (List<Object[]>) query.getResultList()) {
+				E entity = (E) o[0];
+				List<RevTuple<E>> ls = byId.get(getIdentifier(entity));
+				if (ls != null) {
+					ls.add(new RevTuple<E>(entity, (DefaultRevisionEntity) o[1], (RevisionType) o[2]));
+				}
+			}
+		}
+		return map;
+	}
+
 	/**
 	 * 查询某个实体在某个修订版时的历史记录
 	 * 
@@ -64,6 +217,298 @@ public abstract class AuditedRepository<E, ID extends Serializable> extends Sear
 		return auditReader.find(entityClass, id, revision);
 	}
 
+	/**
+	 * 查询某个实体在某个修订版时自身属性的值，返回与会话无关的分离副本，开启历史版本缓存时可被缓存。
+	 * 值类型属性被复制，其中Date、Calendar、数组和@Embeddable内嵌对象是深复制的；
+	 * 关联实体（@ManyToOne、@OneToOne）为null，集合与Map属性保留实体构造后的初始值，不含历史数据。
+	 * 需要关联对象时应使用getEntityAtRevision
+	 * 
+	 * @param id 实体的id
+	 * @param revision 版本号
+	 * @return 只含自身属性的副本，该修订版时不存在则返回null
+	 */
+	@SuppressWarnings("unchecked")
+	public E getOwnPropertiesAtRevision(ID id, Number revision) {
+		AuditReader auditReader = AuditReaderFactory.get(entityManager);
+		LruCache<List<Object>, Object> cache = getRevisionCache();
+		if (cache == null || !isHistorical(revision)) {
+			E bygone = auditReader.find(entityClass, id, revision);
+			return bygone == null ? null : copyOwnProperties(bygone);
+		}
+		E cached = (E) cache.computeIfAbsent(Arrays.asList(id, revision.longValue()), k -> {
+			E bygone = auditReader.find(entityClass, id, revision);
+			return bygone == null ? null : copyOwnProperties(bygone);
+		});
+		// 每次返回新的副本，调用方的修改不会影响缓存
+		return cached == null ? null : copyOwnProperties(cached);
+	}
+
+	/**
+	 * 清除某个实体的历史版本缓存，裁剪审计数据后调用
+	 * 
+	 * @param id 实体的id
+	 */
+	public void evictRevisions(ID id) {
+		LruCache<List<Object>, Object> cache = REVISION_CACHES.get(getRevisionCacheKey());
+		if (cache != null) {
+			cache.removeIf(key -> Objects.equals(key.get(0), id));
+		}
+	}
+
+	/**
+	 * 清除本实体类的全部历史版本缓存
+	 */
+	public void evictRevisions() {
+		LruCache<List<Object>, Object> cache = REVISION_CACHES.get(getRevisionCacheKey());
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	private LruCache<List<Object>, Object> getRevisionCache() {
+		if (revisionCacheSize <= 0) {
+			return null;
+		}
+		return REVISION_CACHES.computeIfAbsent(getRevisionCacheKey(),
+				k -> new LruCache<List<Object>, Object>(revisionCacheSize));
+	}
+
+	/**
+	 * 不同EntityManagerFactory的审计数据互不相关，缓存按其区分
+	 */
+	private List<Object> getRevisionCacheKey() {
+		return Arrays.asList(entityManagerFactory, entityClass);
+	}
+
+	/**
+	 * 修订号不大于本EntityManagerFactory当前最大修订号时，该修订版时的状态不会再变化，可以缓存
+	 */
+	private boolean isHistorical(Number revision) {
+		long rev = revision.longValue();
+		AtomicLong maxRevision = MAX_REVISIONS.computeIfAbsent(entityManagerFactory, f -> new AtomicLong());
+		if (rev <= maxRevision.get()) {
+			return true;
+		}
+		try {
+			long max = AuditReaderFactory.get(entityManager).getRevisionNumberForDate(new Date()).longValue();
+			return rev <= maxRevision.accumulateAndGet(max, Math::max);
+		} catch (RevisionDoesNotExistException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 复制实体自身的属性，得到与会话无关的副本，关联对象和集合不会被复制
+	 */
+	private E copyOwnProperties(E source) {
+		return copyOwnProperties(entityClass, source);
+	}
+
+	private <T> T copyOwnProperties(Class<T> clazz, T source) {
+		T copy;
+		try {
+			Constructor<T> constructor = clazz.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			copy = constructor.newInstance();
+		} catch (ReflectiveOperationException e) {
+			LOG.catching(e);
+			throw new InnerDataStateException(e);
+		}
+		for (EntityProperty prop : getEntityProperties(clazz)) {
+			Class<?> type = prop.getType();
+			if (type.getAnnotation(Entity.class) != null || Collection.class.isAssignableFrom(type)
+					|| Map.class.isAssignableFrom(type)) {
+				continue;
+			}
+			prop.setValue(copy, copyValue(prop.getValue(source)));
+		}
+		return copy;
+	}
+
+	/**
+	 * 复制可变的值，不可变的值（字符串、数字、枚举等）直接共享
+	 */
+	@SuppressWarnings("unchecked")
+	private Object copyValue(Object value) {
+		if (value == null) {
+			return null;
+		}
+		Class<Object> type = (Class<Object>) value.getClass();
+		if (value instanceof Date) {
+			// clone保留java.sql.Timestamp等子类及其纳秒
+			return ((Date) value).clone();
+		}
+		if (value instanceof Calendar) {
+			return ((Calendar) value).clone();
+		}
+		if (type.isArray()) {
+			int length = Array.getLength(value);
+			Object array = Array.newInstance(type.getComponentType(), length);
+			for (int i = 0; i < length; i++) {
+				Array.set(array, i, copyValue(Array.get(value, i)));
+			}
+			return array;
+		}
+		if (type.getAnnotation(Embeddable.class) != null) {
+			return copyOwnProperties(type, value);
+		}
+		return value;
+	}
+
+	/**
+	 * 批量查询多个实体在某个修订版时的历史记录，每AUDIT_IN_CHUNK_SIZE个id合为一次审计查询，id与getRevisions(ids)一样先转换为实体的id类型
+	 * 
+	 * @param ids 实体的id
+	 * @param revision 版本号
+	 * @return 按ids的顺序排列，该修订版时不存在的实体不包含在内
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<ID, E> getEntitiesAtRevision(Collection<ID> ids, Number revision) {
+		AuditReader auditReader = AuditReaderFactory.get(entityManager);
+		Set<Object> normalized = new LinkedHashSet<Object>();
+		for (ID id : ids) {
+			normalized.add(toIdType(id));
+		}
+		List<Object> list = new ArrayList<Object>(normalized);
+		Map<ID, E> found = new HashMap<ID, E>();
+		for (int i = 0; i < list.size(); i += AUDIT_IN_CHUNK_SIZE) {
+			AuditQuery query = auditReader.createQuery().forEntitiesAtRevision(entityClass, revision)
+					.add(AuditEntity.id().in(list.subList(i, Math.min(i + AUDIT_IN_CHUNK_SIZE, list.size()))));
+			for (E entity : (List<E>) query.getResultList()) {
+				found.put(getIdentifier(entity), entity);
+			}
+		}
+		Map<ID, E> map = new LinkedHashMap<ID, E>();
+		for (ID id : ids) {
+			E entity = found.get(toIdType(id));
+			if (entity != null) {
+				map.put(id, entity);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * 比较实体在两个修订版时的属性，只返回有变化的属性。
+	 * 若这些属性都开启了Envers的修改标记（withModifiedFlag），则先按修改标记查询区间内是否有修改，没有则不加载历史实体。
+	 * 
+	 * @param id 实体的id
+	 * @param fromRev 起始修订号
+	 * @param toRev 结束修订号
+	 * @return 有变化的属性，关联实体以其id表示，实体集合以id的集合表示
+	 */
+	public List<PropertyDiff> diff(ID id, Number fromRev, Number toRev) {
+		List<PropertyDiff> diffs = new ArrayList<PropertyDiff>();
+		List<EntityProperty> props = getAuditedProperties();
+		Set<String> flagged = new HashSet<String>();
+		boolean globalFlag = Boolean.parseBoolean(
+				String.valueOf(entityManagerFactory.getProperties().get("org.hibernate.envers.global_with_modified_flag")));
+		for (EntityProperty prop : props) {
+			if (globalFlag || getAuditedAnnotation(prop).withModifiedFlag()) {
+				flagged.add(prop.name);
+			}
+		}
+		AuditReader auditReader = AuditReaderFactory.get(entityManager);
+		if (!props.isEmpty() && flagged.size() == props.size()) {
+			AuditDisjunction changed = AuditEntity.disjunction();
+			for (String name : flagged) {
+				changed.add(AuditEntity.property(name).hasChanged());
+			}
+			boolean forward = fromRev.longValue() <= toRev.longValue();
+			Number count = (Number) auditReader.createQuery().forRevisionsOfEntity(entityClass, false, true)
+					.add(AuditEntity.id().eq(id)).add(AuditEntity.revisionNumber().gt(forward ? fromRev : toRev))
+					.add(AuditEntity.revisionNumber().le(forward ? toRev : fromRev)).add(changed)
+					.addProjection(AuditEntity.revisionNumber().count()).getSingleResult();
+			if (count.longValue() == 0) {
+				return diffs;
+			}
+		}
+		E from = auditReader.find(entityClass, id, fromRev), to = auditReader.find(entityClass, id, toRev);
+		if (from == null && to == null) {
+			return diffs;
+		}
+		for (EntityProperty prop : props) {
+			Object oldValue = from == null ? null : toComparable(prop.getValue(from), prop);
+			Object newValue = to == null ? null : toComparable(prop.getValue(to), prop);
+			if (!same(oldValue, newValue, prop.getType())) {
+				diffs.add(new PropertyDiff(prop.name, oldValue, newValue));
+			}
+		}
+		return diffs;
+	}
+
+	/**
+	 * @return 本实体类中被审计的非id属性
+	 */
+	private List<EntityProperty> getAuditedProperties() {
+		List<EntityProperty> props = new ArrayList<EntityProperty>();
+		for (EntityProperty prop : getEntityProperties(entityClass)) {
+			if (prop.getAnnotation(NotAudited.class) != null || prop.getAnnotation(Id.class) != null
+					|| prop.getAnnotation(EmbeddedId.class) != null) {
+				continue;
+			}
+			if (getAuditedAnnotation(prop) != null) {
+				props.add(prop);
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * 未注解@Audited的父类（如EntityBase）中的属性不被审计
+	 */
+	private Audited getAuditedAnnotation(EntityProperty prop) {
+		Audited auditedAnno = prop.getAnnotation(Audited.class);
+		if (auditedAnno == null) {
+			auditedAnno = prop.getDeclaringClass().getAnnotation(Audited.class);
+		}
+		return auditedAnno;
+	}
+
+	/**
+	 * 关联实体转为其id，实体集合转为id的集合，避免比较和返回时加载整个关联对象
+	 */
+	private Object toComparable(Object value, EntityProperty prop) {
+		if (value == null) {
+			return null;
+		}
+		if (prop.getType().getAnnotation(Entity.class) != null) {
+			return entityManagerFactory.getPersistenceUnitUtil().getIdentifier(value);
+		}
+		if (value instanceof Collection) {
+			Class<?>[] genericClasses = prop.getGenericClass();
+			boolean ofEntity = genericClasses.length == 1 && genericClasses[0].getAnnotation(Entity.class) != null;
+			Collection<Object> elements = value instanceof Set ? new HashSet<Object>() : new ArrayList<Object>();
+			for (Object o : (Collection<?>) value) {
+				elements.add(ofEntity ? entityManagerFactory.getPersistenceUnitUtil().getIdentifier(o) : o);
+			}
+			return elements;
+		}
+		return value;
+	}
+
+	/**
+	 * 比较两个属性值，内嵌对象逐个属性比较，可比较的值（如BigDecimal、Date与Timestamp）按compareTo比较
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private boolean same(Object a, Object b, Class<?> type) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		if (type.getAnnotation(Embeddable.class) != null) {
+			for (EntityProperty prop : getEntityProperties(type)) {
+				if (!same(prop.getValue(a), prop.getValue(b), prop.getType())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (a instanceof Comparable && (a.getClass().isInstance(b) || b.getClass().isInstance(a))) {
+			return ((Comparable) a).compareTo(b) == 0;
+		}
+		return Objects.equals(a, b);
+	}
+
 	/**
 	 * 将实体回滚到某历史版本上
 	 * 
@@ -76,6 +521,134 @@ public abstract class AuditedRepository<E, ID extends Serializable> extends Sear
 		entityManager.unwrap(Session.class).replicate(bygone, ReplicationMode.IGNORE);
 	}
 
+	/**
+	 * 将多个实体回滚到某一时刻的状态，需在事务中调用。
+	 * 先确定该时刻的修订号，再按批以IN查询加载各实体在该修订版时的快照和当前的实体，
+	 * 将被审计的属性复制到当前实体上，以JDBC批处理更新，每rollbackBatchSize个刷新一次，并只将这些实体从持久化上下文中分离。
+	 * 关联实体以引用（getReference）设置，不会查询；历史快照中的集合属性需逐个加载。
+	 * 该时刻之后已被删除的实体无法批量更新，以replicate重新插入，每个会多一次查询。
+	 * 与rollback一样，未被审计的属性（如EntityBase中的属性）无法还原。
+	 * 
+	 * @param ids 实体的id
+	 * @param pointInTime 回滚到的时刻
+	 * @return 回滚的结果，该时刻不存在的实体被跳过
+	 */
+	public RollbackReport<ID> rollbackAll(Collection<ID> ids, Date pointInTime) {
+		List<ID> list = new ArrayList<ID>(ids);
+		Number revision;
+		try {
+			revision = AuditReaderFactory.get(entityManager).getRevisionNumberForDate(pointInTime);
+		} catch (RevisionDoesNotExistException e) {
+			LOG.debug("No revision before {}", pointInTime);
+			return new RollbackReport<ID>(null, new ArrayList<ID>(), list);
+		}
+		List<ID> restored = new ArrayList<ID>(), skipped = new ArrayList<ID>();
+		List<EntityProperty> props = getAuditedProperties();
+		Session session = entityManager.unwrap(Session.class);
+		Integer jdbcBatchSize = session.getJdbcBatchSize();
+		session.setJdbcBatchSize(rollbackBatchSize);
+		try {
+			List<Object> pending = new ArrayList<Object>();
+			for (int i = 0; i < list.size(); i += AUDIT_IN_CHUNK_SIZE) {
+				List<ID> chunk = list.subList(i, Math.min(i + AUDIT_IN_CHUNK_SIZE, list.size()));
+				Map<ID, E> bygones = getEntitiesAtRevision(chunk, revision);
+				List<Object> existing = new ArrayList<Object>(bygones.size());
+				for (E bygone : bygones.values()) {
+					existing.add(getIdentifier(bygone));
+				}
+				Map<Object, E> currents = new HashMap<Object, E>();
+				for (E current : loadInOrder(existing)) {
+					currents.put(getIdentifier(current), current);
+				}
+				for (ID id : chunk) {
+					E bygone = bygones.get(id);
+					if (bygone == null) {
+						skipped.add(id);
+						continue;
+					}
+					E current = currents.get(getIdentifier(bygone));
+					if (current == null) {
+						session.replicate(bygone, ReplicationMode.OVERWRITE);
+						pending.add(bygone);
+					} else {
+						restoreProperties(current, bygone, props);
+						pending.add(current);
+					}
+					restored.add(id);
+					if (pending.size() == rollbackBatchSize) {
+						flushAndDetach(pending);
+					}
+				}
+			}
+			flushAndDetach(pending);
+		} finally {
+			session.setJdbcBatchSize(jdbcBatchSize);
+		}
+		return new RollbackReport<ID>(revision, restored, skipped);
+	}
+
+	/**
+	 * 刷新后只分离回滚的实体，调用方持久化上下文中的其他实体不受影响
+	 */
+	private void flushAndDetach(List<Object> entities) {
+		entityManager.flush();
+		for (Object entity : entities) {
+			entityManager.detach(entity);
+		}
+		entities.clear();
+	}
+
+	/**
+	 * 将历史快照中被审计的属性复制到当前实体上，关联实体及实体集合中的元素转为当前持久化上下文中的引用
+	 */
+	@SuppressWarnings("unchecked")
+	private void restoreProperties(E current, E bygone, List<EntityProperty> props) {
+		for (EntityProperty prop : props) {
+			Object value = prop.getValue(bygone);
+			if (prop.getType().getAnnotation(Entity.class) != null) {
+				prop.setValue(current, toReference(value, prop.getType()));
+			} else if (value instanceof Collection) {
+				Class<?>[] genericClasses = prop.getGenericClass();
+				boolean ofEntity = genericClasses.length == 1 && genericClasses[0].getAnnotation(Entity.class) != null;
+				Collection<Object> elements = value instanceof Set ? new HashSet<Object>() : new ArrayList<Object>();
+				for (Object o : (Collection<?>) value) {
+					elements.add(ofEntity ? toReference(o, genericClasses[0]) : o);
+				}
+				Collection<Object> target = (Collection<Object>) prop.getValue(current);
+				if (target == null) {
+					prop.setValue(current, elements);
+				} else {
+					target.clear();
+					target.addAll(elements);
+				}
+			} else {
+				prop.setValue(current, value);
+			}
+		}
+	}
+
+	private Object toReference(Object entity, Class<?> type) {
+		if (entity == null) {
+			return null;
+		}
+		return entityManager.getReference(type, entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity));
+	}
+
+	/**
+	 * 将调用方传入的id转换为实体的id类型，使之能与实体的id比较
+	 */
+	private Object toIdType(Object id) {
+		if (id == null || idClass.isInstance(id)) {
+			return id;
+		}
+		return DefaultConversionService.getSharedInstance().convert(id, idClass);
+	}
+
+	@SuppressWarnings("unchecked")
+	private ID getIdentifier(E entity) {
+		return (ID) entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity);
+	}
+
 	/**
 	 * 将实体历史版本的信息进行封装，包含历史版本的快照，修订版的版本号，修改的类型等
 	 * 
@@ -92,4 +665,60 @@ public abstract class AuditedRepository<E, ID extends Serializable> extends Sear
 			this.revisionType = revisionType;
 		}
 	}
+
+	/**
+	 * 两个修订版之间某个属性的变化
+	 */
+	public static class PropertyDiff {
+		/** 属性名 */
+		public final String property;
+		/** 起始修订版时的值 */
+		public final Object oldValue;
+		/** 结束修订版时的值 */
+		public final Object newValue;
+
+		public PropertyDiff(String property, Object oldValue, Object newValue) {
+			this.property = property;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+		}
+	}
+
+	/**
+	 * 批量回滚的结果
+	 * 
+	 * @param <ID> 实体的ID类型
+	 */
+	public static class RollbackReport<ID> {
+		/** 回滚到的修订号，该时刻之前没有修订版时为null */
+		public final Number revision;
+		/** 已回滚的实体id */
+		public final List<ID> restored;
+		/** 该时刻不存在而被跳过的实体id */
+		public final List<ID> skipped;
+
+		public RollbackReport(Number revision, List<ID> restored, List<ID> skipped) {
+			this.revision = revision;
+			this.restored = restored;
+			this.skipped = skipped;
+		}
+	}
+
+	/**
+	 * 修订版的概要信息，不含历史版本的快照
+	 */
+	public static class RevHeader {
+		/** 修订号 */
+		public final int revision;
+		/** 修订时的时间戳 */
+		public final long timestamp;
+		/** 增(ADD)、改(MOD)、删(DEL) */
+		public final RevisionType revisionType;
+
+		public RevHeader(int revision, long timestamp, RevisionType revisionType) {
+			this.revision = revision;
+			this.timestamp = timestamp;
+			this.revisionType = revisionType;
+		}
+	}
 }
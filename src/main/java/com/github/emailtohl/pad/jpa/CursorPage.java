@@ -0,0 +1,49 @@
+package com.github.emailtohl.pad.jpa;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 基于游标的分页结果，用于深度翻页：将after传给下一次searchAfter即可获取下一页，每页的开销与页码无关
+ * 
+ * @author HeLei
+ *
+ * @param <T> 结果类型
+ */
+public class CursorPage<T> implements Serializable {
+	private static final long serialVersionUID = -5302487786618917140L;
+	private final List<T> content;
+	private final long totalElements;
+	private final String after;
+
+	public CursorPage(List<T> content, long totalElements, String after) {
+		this.content = content;
+		this.totalElements = totalElements;
+		this.after = after;
+	}
+
+	public List<T> getContent() {
+		return content;
+	}
+
+	/**
+	 * @return 符合查询条件的总结果数
+	 */
+	public long getTotalElements() {
+		return totalElements;
+	}
+
+	/**
+	 * @return 获取下一页的游标，没有下一页时为null
+	 */
+	public String getAfter() {
+		return after;
+	}
+
+	/**
+	 * @return 是否还有下一页
+	 */
+	public boolean hasNext() {
+		return after != null;
+	}
+}
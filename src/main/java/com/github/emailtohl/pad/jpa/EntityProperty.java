@@ -88,6 +88,27 @@ class EntityProperty {
 		}
 	}
 	
+	/**
+	 * 设置该属性的值，以setter优先，没有setter时直接设置字段
+	 * @param entity 实体对象
+	 * @param value 属性的值
+	 */
+	void setValue(Object entity, Object value) {
+		try {
+			Method setter = AccessType.PROPERTY == accessType ? propertyDescriptor.getWriteMethod() : null;
+			if (setter != null) {
+				setter.setAccessible(true);
+				setter.invoke(entity, value);
+			} else if (field != null) {
+				field.set(entity, value);
+			} else {
+				throw new InnerDataStateException("There's no setter method in " + name);
+			}
+		} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+			throw new InnerDataStateException(e);
+		}
+	}
+	
 	/**
 	 * @return 返回属性的类型
 	 */
@@ -113,6 +134,19 @@ class EntityProperty {
 		}
 	}
 	
+	/**
+	 * 获取声明该属性的类
+	 * @return getter或字段所在的类
+	 */
+	Class<?> getDeclaringClass() {
+		if (AccessType.PROPERTY == accessType) {
+			return getter.getDeclaringClass();
+		} else {
+			assert AccessType.FIELD == accessType;
+			return field.getDeclaringClass();
+		}
+	}
+	
 	/**
 	 * 获取该属性的泛型类
 	 * @return 泛型类的实例
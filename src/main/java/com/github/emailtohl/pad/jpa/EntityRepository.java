@@ -29,6 +29,8 @@ public abstract class EntityRepository<E, ID extends Serializable> implements En
 	protected EntityManagerFactory entityManagerFactory;
 	@PersistenceContext
 	protected EntityManager entityManager;
+	/** 实体id属性的名字，首次使用时从元模型中获取 */
+	private volatile String idAttributeName;
 
 	protected EntityRepository(Class<E> entityClass, Class<ID> idClass) {
 		this.entityClass = entityClass;
@@ -114,4 +116,18 @@ public abstract class EntityRepository<E, ID extends Serializable> implements En
 	public void remove(E entity) {
 		entityManager.remove(entity);
 	}
+	
+	/**
+	 * 从JPA元模型中获取实体id属性的名字
+	 * 
+	 * @return id属性名
+	 */
+	protected String getIdAttributeName() {
+		String name = idAttributeName;
+		if (name == null) {
+			name = entityManagerFactory.getMetamodel().entity(entityClass).getId(idClass).getName();
+			idAttributeName = name;
+		}
+		return name;
+	}
 }
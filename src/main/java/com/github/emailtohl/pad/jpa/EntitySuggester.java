@@ -0,0 +1,190 @@
+package com.github.emailtohl.pad.jpa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * 某个实体类的输入提示，基于内存中的AnalyzingInfixSuggester，可匹配取值中任意词的前缀。
+ * 权重为拥有该取值的实体数，查询时权重高的排在前面。
+ * 重建会替换AnalyzingInfixSuggester内部的搜索器，重建、增量更新和关闭持有写锁，查询持有读锁。
+ *
+ * @author HeLei
+ */
+class EntitySuggester implements Closeable {
+	private final AnalyzingInfixSuggester suggester;
+	/** 各取值的权重，增量更新时据此调整 */
+	private final ConcurrentHashMap<String, Long> weights = new ConcurrentHashMap<String, Long>();
+	private volatile boolean built = false;
+	/** 增量更新后还未刷新，查询前需刷新 */
+	private volatile boolean dirty = false;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	EntitySuggester() throws IOException {
+		StandardAnalyzer analyzer = new StandardAnalyzer();
+		suggester = new AnalyzingInfixSuggester(new RAMDirectory(), analyzer, analyzer, 1, false);
+	}
+
+	boolean isBuilt() {
+		return built;
+	}
+
+	/**
+	 * 以全部取值重建
+	 * 
+	 * @param counts 取值及拥有该取值的实体数
+	 */
+	void build(Map<String, Long> counts) throws IOException {
+		lock.writeLock().lock();
+		try {
+			doBuild(counts);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void doBuild(Map<String, Long> counts) throws IOException {
+		Iterator<Entry<String, Long>> it = counts.entrySet().iterator();
+		suggester.build(new InputIterator() {
+			private long weight;
+
+			@Override
+			public BytesRef next() throws IOException {
+				if (!it.hasNext()) {
+					return null;
+				}
+				Entry<String, Long> e = it.next();
+				weight = e.getValue();
+				return new BytesRef(e.getKey());
+			}
+
+			@Override
+			public long weight() {
+				return weight;
+			}
+
+			@Override
+			public BytesRef payload() {
+				return null;
+			}
+
+			@Override
+			public boolean hasPayloads() {
+				return false;
+			}
+
+			@Override
+			public Set<BytesRef> contexts() {
+				return null;
+			}
+
+			@Override
+			public boolean hasContexts() {
+				return false;
+			}
+		});
+		weights.clear();
+		weights.putAll(counts);
+		built = true;
+		dirty = false;
+	}
+
+	/**
+	 * 调整某个取值的权重，权重为0的取值不会出现在查询结果中
+	 * 
+	 * @param text 取值
+	 * @param delta 权重的增量
+	 */
+	void adjust(String text, long delta) throws IOException {
+		lock.writeLock().lock();
+		try {
+			long weight = weights.merge(text, delta, Long::sum);
+			if (weight < 0) {
+				weight = 0;
+				weights.put(text, weight);
+			}
+			suggester.update(new BytesRef(text), null, weight, null);
+			dirty = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 若该取值还没有，则以权重1添加
+	 * 
+	 * @param text 取值
+	 */
+	void addIfAbsent(String text) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!weights.containsKey(text)) {
+				adjust(text, 1);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param prefix 输入的前缀
+	 * @param num 最多返回的数量
+	 * @return 按权重从高到低排列的提示，不含权重为0的取值
+	 */
+	List<String> lookup(String prefix, int num) throws IOException {
+		if (dirty) {
+			lock.writeLock().lock();
+			try {
+				if (dirty) {
+					suggester.refresh();
+					dirty = false;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		lock.readLock().lock();
+		try {
+			// 权重为0的取值只能在重建时移除，不足num个时加倍多取，直到足够或已取完
+			for (int fetch = num;; fetch = (int) Math.min(Integer.MAX_VALUE, 2L * fetch)) {
+				List<LookupResult> results = suggester.lookup(prefix, fetch, true, false);
+				List<String> ls = new ArrayList<String>(num);
+				for (LookupResult r : results) {
+					if (r.value > 0 && ls.size() < num) {
+						ls.add(r.key.toString());
+					}
+				}
+				if (ls.size() == num || results.size() < fetch || fetch == Integer.MAX_VALUE) {
+					return ls;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			suggester.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
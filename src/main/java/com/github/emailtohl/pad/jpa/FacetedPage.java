@@ -0,0 +1,42 @@
+package com.github.emailtohl.pad.jpa;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.search.query.facet.Facet;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+/**
+ * 附带分面统计的分页结果，分面与分页内容在同一次索引查询中得出
+ * 
+ * @author HeLei
+ *
+ * @param <T> 结果类型
+ */
+public class FacetedPage<T> extends PageImpl<T> {
+	private static final long serialVersionUID = 6386014434717381032L;
+	private final Map<String, List<Facet>> facets;
+
+	public FacetedPage(List<T> content, Pageable pageable, long total, Map<String, List<Facet>> facets) {
+		super(content, pageable, total);
+		this.facets = Collections.unmodifiableMap(facets);
+	}
+
+	/**
+	 * @return 以分面请求名为键的分面统计，每个Facet包含取值或区间以及命中数
+	 */
+	public Map<String, List<Facet>> getFacets() {
+		return facets;
+	}
+
+	/**
+	 * @param facetingName 分面请求名
+	 * @return 该分面的统计，没有该分面时返回空列表
+	 */
+	public List<Facet> getFacets(String facetingName) {
+		List<Facet> ls = facets.get(facetingName);
+		return ls == null ? Collections.emptyList() : ls;
+	}
+}
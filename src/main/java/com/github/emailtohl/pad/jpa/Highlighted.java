@@ -0,0 +1,34 @@
+package com.github.emailtohl.pad.jpa;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 高亮查询的结果：实体及其各索引域中与关键字匹配的高亮片段
+ *
+ * @author HeLei
+ *
+ * @param <E> 实体类型
+ */
+public class Highlighted<E> implements Serializable {
+	private static final long serialVersionUID = 3921687442930750216L;
+	private final E entity;
+	private final Map<String, String[]> fragments;
+
+	public Highlighted(E entity, Map<String, String[]> fragments) {
+		this.entity = entity;
+		this.fragments = Collections.unmodifiableMap(fragments);
+	}
+
+	public E getEntity() {
+		return entity;
+	}
+
+	/**
+	 * @return 以域名为键的高亮片段，没有匹配的域不会出现在其中
+	 */
+	public Map<String, String[]> getFragments() {
+		return fragments;
+	}
+}
@@ -0,0 +1,199 @@
+package com.github.emailtohl.pad.jpa;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.search.batchindexing.MassIndexerProgressMonitor;
+
+/**
+ * 某个实体类的索引构建状态，可在构建过程中观察加载、构建以及写入索引的数量和吞吐量
+ *
+ * @author HeLei
+ */
+public class IndexingProgress implements MassIndexerProgressMonitor {
+	/**
+	 * 索引构建的状态
+	 */
+	public enum Status {
+		/** 还未检查过索引 */
+		NONE,
+		/** 正在构建索引，此时搜索仍使用已有的索引 */
+		RUNNING,
+		/** 构建完成 */
+		DONE,
+		/** 索引已是最新，无需构建 */
+		SKIPPED,
+		/** 构建失败，可再次触发构建 */
+		FAILED
+	}
+
+	/** 被索引的实体类 */
+	public final Class<?> entityClass;
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong entitiesLoaded = new AtomicLong();
+	private final AtomicLong documentsBuilt = new AtomicLong();
+	private final AtomicLong documentsAdded = new AtomicLong();
+	private volatile Status status = Status.NONE;
+	private volatile long startTime;
+	private volatile long endTime;
+	private volatile Throwable failure;
+	private volatile Future<?> future;
+
+	IndexingProgress(Class<?> entityClass) {
+		this.entityClass = entityClass;
+	}
+
+	/**
+	 * 开始一次构建，若已在构建中则返回false
+	 *
+	 * @param future 本次构建的执行结果
+	 * @return 是否由本次调用开始构建
+	 */
+	synchronized boolean begin(Future<?> future) {
+		if (status == Status.RUNNING) {
+			return false;
+		}
+		totalCount.set(0);
+		entitiesLoaded.set(0);
+		documentsBuilt.set(0);
+		documentsAdded.set(0);
+		failure = null;
+		startTime = System.currentTimeMillis();
+		endTime = 0;
+		this.future = future;
+		status = Status.RUNNING;
+		return true;
+	}
+
+	/**
+	 * 结束本次构建
+	 *
+	 * @param status 结束时的状态
+	 * @param failure 失败时的异常，成功时为null
+	 */
+	synchronized void finish(Status status, Throwable failure) {
+		this.failure = failure;
+		this.endTime = System.currentTimeMillis();
+		this.status = status;
+	}
+
+	/**
+	 * 等待正在进行的构建完成
+	 */
+	void await() {
+		Future<?> f = future;
+		if (f == null) {
+			return;
+		}
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// 异常已记录在failure中
+		}
+	}
+
+	Future<?> getFuture() {
+		return future;
+	}
+
+	@Override
+	public void documentsAdded(long increment) {
+		documentsAdded.addAndGet(increment);
+	}
+
+	@Override
+	public void documentsBuilt(int number) {
+		documentsBuilt.addAndGet(number);
+	}
+
+	@Override
+	public void entitiesLoaded(int size) {
+		entitiesLoaded.addAndGet(size);
+	}
+
+	@Override
+	public void addToTotalCount(long count) {
+		totalCount.addAndGet(count);
+	}
+
+	@Override
+	public void indexingCompleted() {
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return 本次构建需要处理的实体总数
+	 */
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * @return 已从数据库加载的实体数
+	 */
+	public long getEntitiesLoaded() {
+		return entitiesLoaded.get();
+	}
+
+	/**
+	 * @return 已构建的Lucene文档数
+	 */
+	public long getDocumentsBuilt() {
+		return documentsBuilt.get();
+	}
+
+	/**
+	 * @return 已写入索引的文档数
+	 */
+	public long getDocumentsAdded() {
+		return documentsAdded.get();
+	}
+
+	/**
+	 * @return 构建开始的时间戳，未开始时为0
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return 构建已耗费的毫秒数，构建结束后为总耗时
+	 */
+	public long getElapsedMillis() {
+		if (startTime == 0) {
+			return 0;
+		}
+		long end = endTime == 0 ? System.currentTimeMillis() : endTime;
+		return end - startTime;
+	}
+
+	/**
+	 * @return 每秒写入索引的文档数
+	 */
+	public double getThroughput() {
+		long elapsed = getElapsedMillis();
+		if (elapsed == 0) {
+			return 0;
+		}
+		return documentsAdded.get() * 1000.0 / elapsed;
+	}
+
+	/**
+	 * @return 构建失败的原因，未失败时为null
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s: %d/%d documents added in %d ms (%.1f docs/s)", entityClass.getSimpleName(),
+				status, documentsAdded.get(), totalCount.get(), getElapsedMillis(), getThroughput());
+	}
+}
@@ -0,0 +1,138 @@
+package com.github.emailtohl.pad.jpa;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.search.cfg.Environment;
+import org.hibernate.search.engine.spi.DocumentBuilderIndexedEntity;
+import org.hibernate.search.engine.spi.EntityIndexBinding;
+import org.hibernate.search.orm.spi.SearchIntegratorHelper;
+import org.hibernate.search.spi.IndexedTypeIdentifier;
+import org.hibernate.search.spi.SearchIntegrator;
+
+/**
+ * 与Hibernate Search的索引监听器并列注册，按同样的脏检查规则统计更新时跳过或执行了重建索引。
+ * 每个SessionFactory只注册一次。
+ *
+ * @author HeLei
+ */
+class ReindexListener implements PostUpdateEventListener {
+	private static final long serialVersionUID = 6012378434729154043L;
+	private static final ConcurrentHashMap<SessionFactoryImplementor, ReindexListener> LISTENERS = new ConcurrentHashMap<SessionFactoryImplementor, ReindexListener>();
+	/** 只统计已登记的实体类 */
+	private final ConcurrentHashMap<Class<?>, ReindexStatistics> statistics = new ConcurrentHashMap<Class<?>, ReindexStatistics>();
+	/** 各实体类的DocumentBuilder，避免每次更新都遍历所有索引类型，没有索引的实体类对应Optional.empty() */
+	private final ConcurrentHashMap<Class<?>, Optional<DocumentBuilderIndexedEntity>> documentBuilders = new ConcurrentHashMap<Class<?>, Optional<DocumentBuilderIndexedEntity>>();
+	private final SessionFactoryImplementor sessionFactory;
+
+	private ReindexListener(SessionFactoryImplementor sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	/**
+	 * 获取该EntityManagerFactory上的监听器，首次获取时注册
+	 */
+	static ReindexListener of(EntityManagerFactory entityManagerFactory) {
+		SessionFactoryImplementor sfi = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+		return LISTENERS.computeIfAbsent(sfi, f -> {
+			ReindexListener listener = new ReindexListener(f);
+			f.getServiceRegistry().getService(EventListenerRegistry.class).appendListeners(EventType.POST_UPDATE, listener);
+			return listener;
+		});
+	}
+
+	/**
+	 * 登记需要统计的实体类
+	 */
+	ReindexStatistics register(Class<?> entityClass) {
+		return statistics.computeIfAbsent(entityClass, ReindexStatistics::new);
+	}
+
+	/**
+	 * @return Hibernate Search是否开启了脏检查，即hibernate.search.enable_dirty_check不为false
+	 */
+	boolean isDirtyCheckEnabled() {
+		Object value = sessionFactory.getProperties().get(Environment.ENABLE_DIRTY_CHECK);
+		return value == null || Boolean.parseBoolean(value.toString().trim());
+	}
+
+	/**
+	 * 让该实体类的每次更新都重建索引，启动后不可恢复
+	 */
+	void disableDirtyCheck(Class<?> entityClass) {
+		DocumentBuilderIndexedEntity docBuilder = getDocumentBuilder(entityClass);
+		if (docBuilder != null) {
+			docBuilder.forceStateInspectionOptimizationsDisabled();
+		}
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent event) {
+		Class<?> entityClass = event.getPersister().getMappedClass();
+		ReindexStatistics stats = statistics.get(entityClass);
+		if (stats == null) {
+			return;
+		}
+		DocumentBuilderIndexedEntity docBuilder = getDocumentBuilder(entityClass);
+		if (docBuilder == null) {
+			return;
+		}
+		String[] dirtyPropertyNames = getDirtyPropertyNames(event);
+		// 与FullTextIndexEventListener的判断一致：未开启脏检查或无法得知修改了哪些属性时都会重建索引
+		if (isDirtyCheckEnabled() && dirtyPropertyNames != null && !docBuilder.isDirty(dirtyPropertyNames)) {
+			stats.skipped();
+		} else {
+			stats.performed();
+		}
+	}
+
+	@Override
+	public boolean requiresPostCommitHandling(EntityPersister persister) {
+		return false;
+	}
+
+	/**
+	 * Hibernate 5.4中仍为抽象方法，只能实现，实际由requiresPostCommitHandling决定
+	 */
+	@Deprecated
+	@Override
+	public boolean requiresPostCommitHanding(EntityPersister persister) {
+		return requiresPostCommitHandling(persister);
+	}
+
+	private String[] getDirtyPropertyNames(PostUpdateEvent event) {
+		int[] dirtyProperties = event.getDirtyProperties();
+		if (dirtyProperties == null || dirtyProperties.length == 0) {
+			return null;
+		}
+		String[] propertyNames = event.getPersister().getPropertyNames();
+		String[] dirtyPropertyNames = new String[dirtyProperties.length];
+		for (int i = 0; i < dirtyProperties.length; i++) {
+			dirtyPropertyNames[i] = propertyNames[dirtyProperties[i]];
+		}
+		return dirtyPropertyNames;
+	}
+
+	private DocumentBuilderIndexedEntity getDocumentBuilder(Class<?> entityClass) {
+		return documentBuilders.computeIfAbsent(entityClass, c -> Optional.ofNullable(findDocumentBuilder(c))).orElse(null);
+	}
+
+	private DocumentBuilderIndexedEntity findDocumentBuilder(Class<?> entityClass) {
+		SearchIntegrator integrator = SearchIntegratorHelper.extractFromSessionFactory(sessionFactory);
+		for (IndexedTypeIdentifier type : integrator.getIndexedTypeIdentifiers()) {
+			if (type.getName().equals(entityClass.getName())) {
+				EntityIndexBinding binding = integrator.getIndexBinding(type);
+				return binding == null ? null : binding.getDocumentBuilder();
+			}
+		}
+		return null;
+	}
+}
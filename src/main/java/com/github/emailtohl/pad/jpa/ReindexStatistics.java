@@ -0,0 +1,81 @@
+package com.github.emailtohl.pad.jpa;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 某个实体类在更新时重建索引的统计：
+ * 只修改了未被索引的属性（如modifyTime、version）时，Hibernate Search的脏检查会跳过重建索引，
+ * 否则该实体及通过@ContainedIn关联的实体都要重建索引。
+ *
+ * @author HeLei
+ */
+public class ReindexStatistics {
+	/** 被统计的实体类 */
+	public final Class<?> entityClass;
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong performed = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+
+	ReindexStatistics(Class<?> entityClass) {
+		this.entityClass = entityClass;
+	}
+
+	void skipped() {
+		skipped.incrementAndGet();
+	}
+
+	void performed() {
+		performed.incrementAndGet();
+	}
+
+	void flushed() {
+		flushes.incrementAndGet();
+	}
+
+	/**
+	 * @return 因只修改了未索引属性而跳过重建索引的更新次数
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return 重建了索引的更新次数
+	 */
+	public long getPerformed() {
+		return performed.get();
+	}
+
+	/**
+	 * @return updateAll按批刷新到数据库和索引的次数
+	 */
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * @return 跳过重建索引的更新所占比例
+	 */
+	public double getSkipRatio() {
+		long s = skipped.get(), total = s + performed.get();
+		if (total == 0) {
+			return 0;
+		}
+		return (double) s / total;
+	}
+
+	/**
+	 * 清零统计
+	 */
+	public void reset() {
+		skipped.set(0);
+		performed.set(0);
+		flushes.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s reindex: %d skipped, %d performed, %d flushes", entityClass.getSimpleName(),
+				skipped.get(), performed.get(), flushes.get());
+	}
+}
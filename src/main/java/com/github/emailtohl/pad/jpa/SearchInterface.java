@@ -2,7 +2,9 @@ package com.github.emailtohl.pad.jpa;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 
+import org.hibernate.search.query.facet.FacetingRequest;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
@@ -30,4 +32,73 @@ public interface SearchInterface<E, ID extends Serializable> extends QueryInterf
 	 * @return 结果集合
 	 */
 	List<E> search(String query);
+
+	/**
+	 * 分页查询与query关键字相关的文档，直接返回索引中存储域的值，不访问数据库
+	 * 
+	 * @param query 字符串关键字
+	 * @param pageable 分页对象
+	 * @param fields 投影的域名
+	 * @return 以域名为键的投影结果
+	 */
+	Page<Map<String, Object>> searchProjection(String query, Pageable pageable, String... fields);
+
+	/**
+	 * 分页查询与query关键字相关的文档，并将索引中存储域的值填充到DTO中，不访问数据库
+	 * 
+	 * @param query 字符串关键字
+	 * @param pageable 分页对象
+	 * @param dtoClass DTO的类型
+	 * @param fields 投影的域名
+	 * @return DTO的分页结果
+	 */
+	<T> Page<T> searchProjection(String query, Pageable pageable, Class<T> dtoClass, String... fields);
+
+	/**
+	 * 分页查询与query关键字相关的实体对象，并在同一次索引查询中统计各分面的命中数
+	 * 
+	 * @param query 字符串关键字
+	 * @param pageable 分页对象
+	 * @param facetingRequests 分面请求
+	 * @return 附带分面统计的分页结果
+	 */
+	FacetedPage<E> search(String query, Pageable pageable, FacetingRequest... facetingRequests);
+
+	/**
+	 * 分页查询与query关键字相关，且满足参数对象example条件的实体对象
+	 * 
+	 * @param query 字符串关键字
+	 * @param example 参数对象
+	 * @param pageable 分页排序对象
+	 * @return 查询结果
+	 */
+	Page<E> search(String query, E example, Pageable pageable);
+
+	/**
+	 * 分页查询与query关键字相关的实体对象，并返回各索引域中与关键字匹配的高亮片段
+	 * 
+	 * @param query 字符串关键字
+	 * @param pageable 分页排序对象，有排序时按排序属性而非相关度排列
+	 * @return 实体及其高亮片段
+	 */
+	Page<Highlighted<E>> searchWithHighlight(String query, Pageable pageable);
+
+	/**
+	 * 基于游标分页查询与query关键字相关的实体对象，适合深度翻页和导出
+	 * 
+	 * @param query 字符串关键字
+	 * @param after 上一页返回的游标，为null时从第一页开始
+	 * @param size 每页大小
+	 * @return 本页的实体以及获取下一页的游标
+	 */
+	CursorPage<E> searchAfter(String query, String after, int size);
+
+	/**
+	 * 输入提示，不访问数据库
+	 * 
+	 * @param prefix 输入的前缀
+	 * @param num 最多返回的数量
+	 * @return 按权重从高到低排列的提示
+	 */
+	List<String> suggest(String prefix, int num);
 }
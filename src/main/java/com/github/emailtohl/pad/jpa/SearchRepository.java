@@ -1,51 +1,174 @@
 package com.github.emailtohl.pad.jpa;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.time.temporal.Temporal;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
+import org.hibernate.search.annotations.Analyze;
 import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Fields;
 import org.hibernate.search.annotations.IndexedEmbedded;
+import org.hibernate.search.annotations.NumericField;
+import org.hibernate.search.engine.ProjectionConstants;
 import org.hibernate.search.exception.SearchException;
+import org.hibernate.search.indexes.IndexReaderAccessor;
 import org.hibernate.search.jpa.FullTextEntityManager;
 import org.hibernate.search.jpa.FullTextQuery;
 import org.hibernate.search.jpa.Search;
+import org.hibernate.search.query.dsl.BooleanJunction;
+import org.hibernate.search.query.dsl.FacetRangeBelowContinuationContext;
+import org.hibernate.search.query.dsl.FacetRangeEndContext;
 import org.hibernate.search.query.dsl.QueryBuilder;
+import org.hibernate.search.query.engine.spi.FacetManager;
+import org.hibernate.search.query.facet.Facet;
+import org.hibernate.search.query.facet.FacetingRequest;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.NullValueInNestedPathException;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.convert.support.DefaultConversionService;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.repository.query.QueryUtils;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import com.github.emailtohl.pad.event.CreateEntityEvent;
+import com.github.emailtohl.pad.event.DeleteEntityEvent;
+import com.github.emailtohl.pad.event.UpdateEntityEvent;
 import com.github.emailtohl.pad.exception.InnerDataStateException;
+import com.github.emailtohl.pad.jpa.IndexingProgress.Status;
+import com.github.emailtohl.pad.lucene.SearchCursor;
 
 /**
  * 搜索的公共类，只搜索字符串域的内容，若是数字、日期等值类型，需用@FieldBridge(impl = StringBridgeCustomization.class)注解
  * 
+ * 索引状态按实体类分别维护，首次搜索时会在后台检查并补全索引，构建期间搜索仍使用已有的索引。
+ * 
  * @author HeLei
  *
  * @param <E> 实体类型
  * @param <ID> 实体的ID类型
  */
 public abstract class SearchRepository<E, ID extends Serializable> extends QueryRepository<E, ID> implements SearchInterface<E, ID> {
-	private static volatile boolean IS_INIT = false;
+	/** 以(EntityManagerFactory, 实体类)为键的索引构建状态，不同EntityManagerFactory的索引互不相关 */
+	private static final ConcurrentHashMap<List<Object>, IndexingProgress> INDEXING = new ConcurrentHashMap<List<Object>, IndexingProgress>();
+	/** 按id过滤时每条IN语句中id的最大数量 */
+	private static final int IN_CHUNK_SIZE = 1000;
+	/** 在后台构建索引的线程池 */
+	private static final ExecutorService INDEXING_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "search-repository-indexing");
+		t.setDaemon(true);
+		return t;
+	});
+	/** 以(EntityManagerFactory, 实体类)为键的输入提示 */
+	private static final ConcurrentHashMap<List<Object>, EntitySuggester> SUGGESTERS = new ConcurrentHashMap<List<Object>, EntitySuggester>();
+	/** 定期重建输入提示的调度器 */
+	private static final ScheduledExecutorService SUGGESTER_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "search-repository-suggester");
+		t.setDaemon(true);
+		return t;
+	});
 	protected final String[] onFields;
+	/** 索引域对应的字符串属性路径，用于输入提示 */
+	protected final Set<String> suggestPaths;
+	/** 批量索引时加载实体的线程数 */
+	protected int threadsToLoadObjects = 6;
+	/** 批量索引时每批加载的实体数，也是补全索引时刷新到索引的批次大小 */
+	protected int batchSizeToLoadObjects = 10;
+	/** 批量索引时读取id的fetch size，MySQL需设置为Integer.MIN_VALUE才能流式读取 */
+	protected int idFetchSize = 100;
+	/** 是否在启动时就在后台构建索引，否则在首次搜索时才触发 */
+	protected boolean indexOnStartup = false;
+	/** 高亮片段的字符数 */
+	protected int fragmentSize = 100;
+	/** 每个域最多返回的高亮片段数 */
+	protected int maxFragments = 3;
+	/** 定期重建输入提示的间隔毫秒数，为0时不定期重建，修改后的旧取值等增量更新无法反映的变化由重建校正 */
+	protected long suggesterRebuildInterval = TimeUnit.MINUTES.toMillis(10);
+	/** 更新时是否按脏检查跳过重建索引，只修改了未索引的属性时不重建 */
+	protected boolean reindexDirtyCheck = true;
+	/** 定期重建输入提示的任务，销毁时取消 */
+	private ScheduledFuture<?> suggesterTask;
+	/** 容器中的事务管理器，补全索引时在其事务中写入，JTA环境下也适用 */
+	private ObjectProvider<PlatformTransactionManager> transactionManagers;
+	/** 补全索引时使用的事务模板，首次使用时创建 */
+	private volatile TransactionTemplate transactionTemplate;
 
 	public SearchRepository(Class<E> entityClass, Class<ID> idClass, String... onFields) {
 		super(entityClass, idClass);
 		this.onFields = onFields;
+		this.suggestPaths = new HashSet<String>(Arrays.asList(onFields));
 	}
 	
 	public SearchRepository(Class<E> entityClass, Class<ID> idClass) {
 		super(entityClass, idClass);
-		this.onFields = new Closure().getOnfields();
+		Closure closure = new Closure();
+		this.onFields = closure.getOnfields();
+		this.suggestPaths = closure.paths;
 	}
 
 	public SearchRepository() {
 		super();
-		this.onFields = new Closure().getOnfields();
+		Closure closure = new Closure();
+		this.onFields = closure.getOnfields();
+		this.suggestPaths = closure.paths;
 	}
 
 	/**
@@ -54,6 +177,7 @@ public abstract class SearchRepository<E, ID extends Serializable> extends Query
 	private class Closure {
 		private final Set<Class<?>> used = new HashSet<Class<?>>();
 		private final Set<String> fields = new HashSet<String>();
+		private final Set<String> paths = new HashSet<String>();
 
 		String[] getOnfields() {
 			setFields(entityClass, "");
@@ -71,6 +195,7 @@ public abstract class SearchRepository<E, ID extends Serializable> extends Query
 				// @IndexedEmbedded和@ContainedIn可以同时出现在一个属性上，意味着其关联的业务实体对应的属性上也应当同时出现这两个注解。
 				IndexedEmbedded indexedEmbeddedAnno = prop.getAnnotation(IndexedEmbedded.class);
 				Field fieldAnno = prop.getAnnotation(Field.class);
+				Fields fieldsAnno = prop.getAnnotation(Fields.class);
 				if (indexedEmbeddedAnno != null) {
 					// IndexedEmbedded既可以注解在@ManyToOne这样的实体属性上，也可以注解在@OneToMany这样的集合属性上
 					Class<?> embclz = prop.getType();
@@ -87,37 +212,497 @@ public abstract class SearchRepository<E, ID extends Serializable> extends Query
 						}
 					}
 					setFields(embclz, parentPath.isEmpty() ? prop.name : parentPath + '.' + prop.name);
-				} else if (fieldAnno != null) {
-					String field = (parentPath.isEmpty() ? "" : parentPath + '.')
-							+ (fieldAnno.name().isEmpty() ? prop.name : fieldAnno.name());
-					fields.add(field);
+				} else {
+					if (fieldAnno != null) {
+						addField(fieldAnno, prop, parentPath);
+					}
+					// 同一属性可用@Fields声明多个域，如分词的搜索域和不分词的分面域
+					if (fieldsAnno != null) {
+						for (Field f : fieldsAnno.value()) {
+							addField(f, prop, parentPath);
+						}
+					}
 				}
 			}
 		}
+
+		private void addField(Field fieldAnno, EntityProperty prop, String parentPath) {
+			String field = (parentPath.isEmpty() ? "" : parentPath + '.')
+					+ (fieldAnno.name().isEmpty() ? prop.name : fieldAnno.name());
+			if (isTextField(fieldAnno, prop)) {
+				fields.add(field);
+			}
+			if (String.class.equals(prop.getType())) {
+				paths.add(parentPath.isEmpty() ? prop.name : parentPath + '.' + prop.name);
+			}
+		}
+
+		/**
+		 * 只有分词的文本域参与关键字搜索，不分词的分面域、数值域等只能精确匹配，不能作为关键字搜索的域
+		 */
+		private boolean isTextField(Field fieldAnno, EntityProperty prop) {
+			if (fieldAnno.analyze() == Analyze.NO || prop.getAnnotation(NumericField.class) != null) {
+				return false;
+			}
+			// 指定了桥接器时以其转换后的字符串建立索引
+			if (!void.class.equals(fieldAnno.bridge().impl())) {
+				return true;
+			}
+			Class<?> type = prop.getType();
+			return !(type.isPrimitive() || Number.class.isAssignableFrom(type) || Boolean.class.equals(type)
+					|| Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type)
+					|| Temporal.class.isAssignableFrom(type));
+		}
 	}
 
-	protected FullTextQuery getLuceneQuery(String query) {
+	@PostConstruct
+	public void init() {
+		ReindexListener reindexListener = ReindexListener.of(entityManagerFactory);
+		reindexListener.register(entityClass);
+		if (!reindexDirtyCheck) {
+			reindexListener.disableDirtyCheck(entityClass);
+		} else if (!reindexListener.isDirtyCheckEnabled()) {
+			LOG.warn("hibernate.search.enable_dirty_check is false, every update of {} will be reindexed",
+					entityClass.getSimpleName());
+		}
+		if (indexOnStartup) {
+			startIndexing();
+		}
+		if (suggesterRebuildInterval > 0) {
+			suggesterTask = SUGGESTER_SCHEDULER.scheduleWithFixedDelay(() -> {
+				// 只重建已被使用过的输入提示
+				EntitySuggester suggester = SUGGESTERS.get(getStateKey());
+				if (suggester == null || !suggester.isBuilt()) {
+					return;
+				}
+				try {
+					rebuildSuggester();
+				} catch (RuntimeException e) {
+					LOG.error(entityClass + " suggester rebuild failed", e);
+				}
+			}, suggesterRebuildInterval, suggesterRebuildInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 取消定期重建输入提示的任务，并关闭本实体类的输入提示，EntityManagerFactory关闭后它们已无法使用
+	 */
+	@PreDestroy
+	public void destroy() {
+		if (suggesterTask != null) {
+			suggesterTask.cancel(false);
+			suggesterTask = null;
+		}
+		EntitySuggester suggester = SUGGESTERS.remove(getStateKey());
+		if (suggester != null) {
+			try {
+				suggester.close();
+			} catch (IOException e) {
+				LOG.catching(e);
+			}
+		}
+	}
+
+	/**
+	 * 在后台检查并构建本实体类的索引：
+	 * 索引为空时使用MassIndexer批量构建；否则分页对比索引和数据库中的id，
+	 * 只为缺失的实体补建索引，并清除已不存在的实体的索引，整个过程中不清空已有索引，id一致时状态为SKIPPED。
+	 * 
+	 * @return 构建的执行结果，若已在构建中，则返回正在进行的那次构建
+	 */
+	public Future<?> startIndexing() {
+		IndexingProgress progress = getIndexingProgress();
+		FutureTask<Void> task = new FutureTask<Void>(() -> rebuildIndex(progress), null);
+		if (!progress.begin(task)) {
+			return progress.getFuture();
+		}
+		INDEXING_EXECUTOR.execute(task);
+		return task;
+	}
+
+	/**
+	 * @return 本实体类的索引构建状态，可观察进度与吞吐量
+	 */
+	public IndexingProgress getIndexingProgress() {
+		return INDEXING.computeIfAbsent(getStateKey(), k -> new IndexingProgress(entityClass));
+	}
+
+	/**
+	 * 索引构建状态和输入提示按EntityManagerFactory和实体类区分，多个容器中的同一实体类互不影响
+	 */
+	private List<Object> getStateKey() {
+		return Arrays.asList(entityManagerFactory, entityClass);
+	}
+
+	/**
+	 * 容器中只有一个事务管理器时自动注入，否则补全索引时使用基于entityManagerFactory的JpaTransactionManager
+	 * 
+	 * @param transactionManagers 容器中的事务管理器
+	 */
+	@Autowired
+	public void setTransactionManagers(ObjectProvider<PlatformTransactionManager> transactionManagers) {
+		this.transactionManagers = transactionManagers;
+	}
+
+	private TransactionTemplate getTransactionTemplate() {
+		if (transactionTemplate == null) {
+			PlatformTransactionManager transactionManager = transactionManagers == null ? null
+					: transactionManagers.getIfUnique();
+			if (transactionManager == null) {
+				transactionManager = new JpaTransactionManager(entityManagerFactory);
+			}
+			transactionTemplate = new TransactionTemplate(transactionManager);
+		}
+		return transactionTemplate;
+	}
+
+	public void setThreadsToLoadObjects(int threadsToLoadObjects) {
+		this.threadsToLoadObjects = threadsToLoadObjects;
+	}
+
+	public void setBatchSizeToLoadObjects(int batchSizeToLoadObjects) {
+		this.batchSizeToLoadObjects = batchSizeToLoadObjects;
+	}
+
+	public void setIdFetchSize(int idFetchSize) {
+		this.idFetchSize = idFetchSize;
+	}
+
+	public void setIndexOnStartup(boolean indexOnStartup) {
+		this.indexOnStartup = indexOnStartup;
+	}
+
+	/**
+	 * @param fragmentSize 高亮片段的字符数，不能小于18
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		if (fragmentSize < 18) {
+			throw new IllegalArgumentException("fragmentSize must be at least 18");
+		}
+		this.fragmentSize = fragmentSize;
+	}
+
+	public void setMaxFragments(int maxFragments) {
+		this.maxFragments = maxFragments;
+	}
+
+	/**
+	 * 关闭后本实体类的每次更新都会重建索引，需在初始化前设置，关闭后不可再开启。
+	 * 开启时还需hibernate.search.enable_dirty_check不为false（默认为true）才生效。
+	 * 
+	 * @param reindexDirtyCheck 是否按脏检查跳过重建索引
+	 */
+	public void setReindexDirtyCheck(boolean reindexDirtyCheck) {
+		this.reindexDirtyCheck = reindexDirtyCheck;
+	}
+
+	/**
+	 * @return 本实体类更新时是否会按脏检查跳过重建索引
+	 */
+	public boolean isReindexDirtyCheckEnabled() {
+		return reindexDirtyCheck && ReindexListener.of(entityManagerFactory).isDirtyCheckEnabled();
+	}
+
+	/**
+	 * @return 本实体类更新时跳过与执行重建索引的统计
+	 */
+	public ReindexStatistics getReindexStatistics() {
+		return ReindexListener.of(entityManagerFactory).register(entityClass);
+	}
+
+	/**
+	 * 批量修改实体，需在事务中调用。每batchSizeToLoadObjects个实体以IN查询加载，修改后刷新到数据库和索引，
+	 * 再将这批实体从持久化上下文中分离，避免积累全部实体，调用方自己加载的其他实体不受影响。
+	 * 索引文档需在实体分离前生成，故每批的索引修改在事务提交前就已写入；
+	 * 调用方的事务回滚时，在新的事务中按数据库中的状态重建这些实体的索引（需在Spring管理的事务中调用）。
+	 * 刷新时EntityListener发布UpdateEntityEvent，与逐个修改实体时相同，输入提示等监听器在事务提交后据此更新。
+	 * 
+	 * @param ids 要修改的实体的id，数据库中已不存在的会被忽略
+	 * @param updater 修改实体的操作
+	 * @return 被修改的实体数
+	 */
+	public int updateAll(Collection<ID> ids, Consumer<E> updater) {
+		ReindexStatistics stats = getReindexStatistics();
+		List<ID> list = new ArrayList<ID>(ids);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					if (status == STATUS_ROLLED_BACK) {
+						reindex(list);
+					}
+				}
+			});
+		}
 		FullTextEntityManager fem = Search.getFullTextEntityManager(entityManager);
-		if (!IS_INIT) {
-			synchronized (entityClass) {
-				if (!IS_INIT) {
-					try {
-						fem.createIndexer().startAndWait();
-						IS_INIT = true;
-					} catch (InterruptedException e) {
-						LOG.error(entityClass + " init failed", e);
-						throw new InnerDataStateException(e);
+		int count = 0;
+		for (int i = 0; i < list.size(); i += batchSizeToLoadObjects) {
+			List<E> batch = loadInOrder(list.subList(i, Math.min(i + batchSizeToLoadObjects, list.size())));
+			for (E entity : batch) {
+				updater.accept(entity);
+			}
+			entityManager.flush();
+			fem.flushToIndexes();
+			for (E entity : batch) {
+				entityManager.detach(entity);
+			}
+			stats.flushed();
+			count += batch.size();
+		}
+		return count;
+	}
+
+	/**
+	 * 在新的事务中按数据库中的状态重建这些实体的索引，用于撤销已提前写入索引的修改
+	 */
+	private void reindex(List<ID> ids) {
+		TransactionTemplate requiresNew = new TransactionTemplate(getTransactionTemplate().getTransactionManager());
+		requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		try {
+			for (int i = 0; i < ids.size(); i += batchSizeToLoadObjects) {
+				List<ID> chunk = ids.subList(i, Math.min(i + batchSizeToLoadObjects, ids.size()));
+				requiresNew.execute(status -> {
+					FullTextEntityManager fem = Search.getFullTextEntityManager(entityManager);
+					for (E entity : loadInOrder(chunk)) {
+						fem.index(entity);
+					}
+					return null;
+				});
+			}
+		} catch (RuntimeException e) {
+			LOG.error(entityClass + " reindex after rollback failed", e);
+		}
+	}
+
+	private void rebuildIndex(IndexingProgress progress) {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			FullTextEntityManager fem = Search.getFullTextEntityManager(em);
+			if (countIndexed(fem) == 0) {
+				if (countStored(em) == 0) {
+					progress.finish(Status.SKIPPED, null);
+					return;
+				}
+				fem.createIndexer(entityClass).threadsToLoadObjects(threadsToLoadObjects)
+						.batchSizeToLoadObjects(batchSizeToLoadObjects).idFetchSize(idFetchSize)
+						.progressMonitor(progress).startAndWait();
+				progress.finish(Status.DONE, null);
+			} else if (reconcileIndex(em, fem, progress)) {
+				progress.finish(Status.DONE, null);
+			} else {
+				LOG.debug("The index of {} is up to date", entityClass.getSimpleName());
+				progress.finish(Status.SKIPPED, null);
+			}
+			LOG.info("{}", progress);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			progress.finish(Status.FAILED, e);
+			LOG.error(entityClass + " indexing interrupted", e);
+		} catch (Throwable e) {
+			// Error也要结束构建，否则等待构建的搜索会一直阻塞
+			progress.finish(Status.FAILED, e);
+			LOG.error(entityClass + " indexing failed", e);
+			if (e instanceof Error) {
+				throw (Error) e;
+			}
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * 分页对比索引和数据库中的id，清除多余的索引，补建缺失的索引，不在内存中保留全部的id。
+	 * 只对比id，绕过Hibernate直接修改数据库导致的内容不一致需用MassIndexer重建
+	 * 
+	 * @return 是否有修补
+	 */
+	private boolean reconcileIndex(EntityManager em, FullTextEntityManager fem, IndexingProgress progress)
+			throws IOException {
+		int purged = purgeStaleDocuments(em, fem);
+		int added = indexMissingEntities(em, fem, progress);
+		return purged + added > 0;
+	}
+
+	/**
+	 * 按文档顺序每次从索引中取出IN_CHUNK_SIZE个id，清除数据库中已不存在的
+	 */
+	private int purgeStaleDocuments(EntityManager em, FullTextEntityManager fem) throws IOException {
+		IndexReaderAccessor accessor = fem.getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = accessor.open(entityClass);
+		int purged = 0;
+		try {
+			IndexSearcher searcher = new IndexSearcher(reader);
+			CriteriaBuilder b = em.getCriteriaBuilder();
+			ScoreDoc after = null;
+			while (true) {
+				TopDocs topDocs = searcher.searchAfter(after, getClassQuery(), IN_CHUNK_SIZE);
+				if (topDocs.scoreDocs.length == 0) {
+					break;
+				}
+				after = topDocs.scoreDocs[topDocs.scoreDocs.length - 1];
+				List<Object> ids = new ArrayList<Object>(topDocs.scoreDocs.length);
+				for (ScoreDoc sd : topDocs.scoreDocs) {
+					ids.add(getDocumentId(searcher, sd.doc));
+				}
+				CriteriaQuery<Object> q = b.createQuery();
+				Root<E> r = q.from(entityClass);
+				q = q.select(r.get(getIdAttributeName())).where(r.get(getIdAttributeName()).in(ids));
+				Set<Object> stored = new HashSet<Object>(em.createQuery(q).getResultList());
+				List<Object> stale = new ArrayList<Object>();
+				for (Object id : ids) {
+					if (!stored.contains(id)) {
+						stale.add(id);
 					}
 				}
+				if (stale.isEmpty()) {
+					continue;
+				}
+				getTransactionTemplate().execute(status -> {
+					FullTextEntityManager txFem = Search.getFullTextEntityManager(entityManager);
+					for (Object id : stale) {
+						txFem.purge(entityClass, (Serializable) id);
+					}
+					return null;
+				});
+				purged += stale.size();
 			}
+		} finally {
+			accessor.close(reader);
 		}
+		return purged;
+	}
+
+	/**
+	 * 按id顺序每次从数据库中取出IN_CHUNK_SIZE个id，在索引中查出已有的，
+	 * 缺失的每batchSizeToLoadObjects个以IN查询加载，在一个事务中建立索引。
+	 * id可比较时以上一页最后的id为起点分页（where id > :last），否则以偏移量分页
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private int indexMissingEntities(EntityManager em, FullTextEntityManager fem, IndexingProgress progress) {
+		CriteriaBuilder b = em.getCriteriaBuilder();
+		boolean keyset = Comparable.class.isAssignableFrom(idClass);
+		QueryBuilder builder = fem.getSearchFactory().buildQueryBuilder().forEntity(entityClass).get();
+		int added = 0;
+		Object last = null;
+		for (int first = 0;; first += IN_CHUNK_SIZE) {
+			CriteriaQuery<Object> q = b.createQuery();
+			Root<E> r = q.from(entityClass);
+			Path idPath = r.get(getIdAttributeName());
+			q = q.select(idPath).orderBy(b.asc(idPath));
+			if (keyset && last != null) {
+				q = q.where(b.greaterThan(idPath, (Comparable) last));
+			}
+			TypedQuery<Object> query = em.createQuery(q).setMaxResults(IN_CHUNK_SIZE)
+					.setHint("org.hibernate.fetchSize", idFetchSize);
+			if (!keyset) {
+				query.setFirstResult(first);
+			}
+			List<Object> page = query.getResultList();
+			if (page.isEmpty()) {
+				break;
+			}
+			last = page.get(page.size() - 1);
+			progress.addToTotalCount(page.size());
+			BooleanJunction<?> idQuery = builder.bool();
+			for (Object id : page) {
+				idQuery.should(builder.keyword().onField(getIdAttributeName()).matching(id).createQuery());
+			}
+			Set<Object> indexed = new HashSet<Object>();
+			FullTextQuery ftq = fem.createFullTextQuery(idQuery.createQuery(), entityClass)
+					.setProjection(ProjectionConstants.ID).setMaxResults(page.size());
+			for (Object row : ftq.getResultList()) {
+				indexed.add(((Object[]) row)[0]);
+			}
+			List<Object> missing = new ArrayList<Object>();
+			for (Object id : page) {
+				if (!indexed.contains(id)) {
+					missing.add(id);
+				}
+			}
+			for (int i = 0; i < missing.size(); i += batchSizeToLoadObjects) {
+				List<Object> ids = missing.subList(i, Math.min(i + batchSizeToLoadObjects, missing.size()));
+				// 每批在一个事务中加载并建立索引，事务结束后其持久化上下文随之释放
+				int built = getTransactionTemplate().execute(status -> {
+					List<E> batch = loadInOrder(entityManager, ids);
+					progress.entitiesLoaded(batch.size());
+					FullTextEntityManager txFem = Search.getFullTextEntityManager(entityManager);
+					for (E entity : batch) {
+						txFem.index(entity);
+					}
+					progress.documentsBuilt(batch.size());
+					return batch.size();
+				});
+				progress.documentsAdded(built);
+				added += built;
+			}
+			if (page.size() < IN_CHUNK_SIZE) {
+				break;
+			}
+		}
+		return added;
+	}
+
+	private long countIndexed(FullTextEntityManager fem) {
+		return fem.createFullTextQuery(new MatchAllDocsQuery(), entityClass).getResultSize();
+	}
+
+	/**
+	 * 直接搜索IndexReader时用于限定本实体类的文档，索引目录可能被多个实体类共享
+	 */
+	private Query getClassQuery() {
+		return new TermQuery(new Term(ProjectionConstants.OBJECT_CLASS, entityClass.getName()));
+	}
+
+	private long countStored(EntityManager em) {
+		CriteriaBuilder b = em.getCriteriaBuilder();
+		CriteriaQuery<Long> c = b.createQuery(Long.class);
+		c = c.select(b.count(c.from(entityClass)));
+		return em.createQuery(c).getSingleResult();
+	}
+
+	protected FullTextQuery getLuceneQuery(String query) {
+		return getLuceneQuery(query, null);
+	}
+
+	/**
+	 * @param query 字符串关键字
+	 * @param filter 不参与评分的过滤条件，可为null
+	 * @return 全文查询
+	 */
+	protected FullTextQuery getLuceneQuery(String query, Query filter) {
+		FullTextEntityManager fem = getFullTextEntityManager();
+		return fem.createFullTextQuery(getKeywordQuery(fem, query, filter), entityClass);
+	}
+
+	/**
+	 * 获取全文检索的实体管理器，若本实体类的索引还未检查过或上次构建失败，则触发构建
+	 */
+	private FullTextEntityManager getFullTextEntityManager() {
+		FullTextEntityManager fem = Search.getFullTextEntityManager(entityManager);
+		IndexingProgress progress = getIndexingProgress();
+		// 上次构建失败时也再次触发
+		if (progress.getStatus() == Status.NONE || progress.getStatus() == Status.FAILED) {
+			startIndexing();
+		}
+		// 构建期间优先使用已有的索引，只有索引为空时才等待构建完成
+		if (progress.getStatus() == Status.RUNNING && countIndexed(fem) == 0) {
+			progress.await();
+		}
+		return fem;
+	}
+
+	private Query getKeywordQuery(FullTextEntityManager fem, String query, Query filter) {
 		QueryBuilder builder = fem.getSearchFactory().buildQueryBuilder().forEntity(entityClass).get();
 		Query lucene = builder.keyword().onFields(onFields).matching(query).createQuery();
-		return fem.createFullTextQuery(lucene, entityClass);
+		if (filter != null) {
+			lucene = new BooleanQuery.Builder().add(lucene, Occur.MUST).add(filter, Occur.FILTER).build();
+		}
+		return lucene;
 	}
 
 	/**
-	 * 分页查询与query关键字相关的实体对象
+	 * 分页查询与query关键字相关的实体对象，分页对象中没有排序时按相关度排序，
+	 * 有排序时从索引中取出相关的id，再在数据库中按排序属性分页
 	 * @param query 字符串关键字
 	 * @param pageable 分页排序对象
 	 * @return 查询结果
@@ -127,6 +712,9 @@ public abstract class SearchRepository<E, ID extends Serializable> extends Query
 			return queryForPage(null, pageable);
 		}
 		try {
+			if (pageable.getSort().isSorted()) {
+				return queryForPage(null, getLuceneQuery(query).setProjection(ProjectionConstants.ID), pageable);
+			}
 			FullTextQuery ftq = getLuceneQuery(query);
 			int total = ftq.getResultSize();
 			ftq.setFirstResult((int) pageable.getOffset()).setMaxResults(pageable.getPageSize());
@@ -157,4 +745,713 @@ public abstract class SearchRepository<E, ID extends Serializable> extends Query
 		}
 	}
 
+	/**
+	 * 分页查询与query关键字相关的文档，直接从索引中读取存储域的值，不会访问数据库。
+	 * 被投影的域需在@Field中声明store = Store.YES，否则其值为null，id域总是可以投影的。
+	 * 
+	 * @param query 字符串关键字，为空时匹配所有文档
+	 * @param pageable 分页对象
+	 * @param fields 投影的域名，嵌入对象的域用“.”分隔，如“seller.name”
+	 * @return 以域名为键的投影结果
+	 */
+	public Page<Map<String, Object>> searchProjection(String query, Pageable pageable, String... fields) {
+		try {
+			FullTextQuery ftq;
+			if (query == null || query.isEmpty()) {
+				// 投影查询不访问数据库，没有关键字时直接在索引中匹配所有文档
+				FullTextEntityManager fem = getFullTextEntityManager();
+				ftq = fem.createFullTextQuery(new MatchAllDocsQuery(), entityClass);
+			} else {
+				ftq = getLuceneQuery(query);
+			}
+			ftq.setProjection(fields);
+			int total = ftq.getResultSize();
+			ftq.setFirstResult((int) pageable.getOffset()).setMaxResults(pageable.getPageSize());
+			List<?> rows = ftq.getResultList();
+			List<Map<String, Object>> ls = new ArrayList<Map<String, Object>>(rows.size());
+			for (Object row : rows) {
+				Object[] values = (Object[]) row;
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				for (int i = 0; i < fields.length; i++) {
+					map.put(fields[i], values[i]);
+				}
+				ls.add(map);
+			}
+			return new PageImpl<Map<String, Object>>(ls, pageable, total);
+		} catch (SearchException e) {
+			LOG.catching(e);
+			return new PageImpl<Map<String, Object>>(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * 分页查询与query关键字相关的文档，并将投影结果按域名填充到DTO的同名属性中，不会访问数据库
+	 * 
+	 * @param query 字符串关键字，为空时匹配所有文档
+	 * @param pageable 分页对象
+	 * @param dtoClass DTO的类型，需有无参构造器，嵌入对象的域如“seller.name”会填充到嵌套属性中
+	 * @param fields 投影的域名
+	 * @return DTO的分页结果
+	 */
+	public <T> Page<T> searchProjection(String query, Pageable pageable, Class<T> dtoClass, String... fields) {
+		Page<Map<String, Object>> page = searchProjection(query, pageable, fields);
+		return page.map(map -> {
+			BeanWrapper wrapper = new BeanWrapperImpl(dtoClass);
+			wrapper.setAutoGrowNestedPaths(true);
+			map.forEach((field, value) -> {
+				if (value != null && wrapper.isWritableProperty(field)) {
+					wrapper.setPropertyValue(field, value);
+				}
+			});
+			@SuppressWarnings("unchecked")
+			T dto = (T) wrapper.getWrappedInstance();
+			return dto;
+		});
+	}
+
+	/**
+	 * 分页查询与query关键字相关的实体对象，并在同一次索引查询中统计各分面的命中数。
+	 * query为空时与search(query, pageable)一样从数据库中分页，分面则统计本实体类在索引中的全部文档
+	 * 
+	 * @param query 字符串关键字
+	 * @param pageable 分页对象
+	 * @param facetingRequests 分面请求，可由discreteFacet、rangeFacet或getQueryBuilder()创建，
+	 *                         被统计的域需注解@Facet
+	 * @return 附带分面统计的分页结果
+	 */
+	public FacetedPage<E> search(String query, Pageable pageable, FacetingRequest... facetingRequests) {
+		Map<String, List<Facet>> facets = new LinkedHashMap<String, List<Facet>>();
+		try {
+			if (query == null || query.isEmpty()) {
+				Page<E> page = queryForPage(null, pageable);
+				getFacets(getFullTextEntityManager().createFullTextQuery(new MatchAllDocsQuery(), entityClass),
+						facetingRequests, facets);
+				return new FacetedPage<E>(page.getContent(), pageable, page.getTotalElements(), facets);
+			}
+			FullTextQuery ftq = getLuceneQuery(query);
+			int total = getFacets(ftq, facetingRequests, facets);
+			ftq.setFirstResult((int) pageable.getOffset()).setMaxResults(pageable.getPageSize());
+			@SuppressWarnings("unchecked")
+			List<E> ls = ftq.getResultList();
+			return new FacetedPage<E>(ls, pageable, total, facets);
+		} catch (SearchException e) {
+			LOG.catching(e);
+			return new FacetedPage<E>(new ArrayList<>(), pageable, 0, facets);
+		}
+	}
+
+	/**
+	 * 在ftq上启用分面请求，并将各分面的统计放入facets中
+	 * 
+	 * @return 命中总数
+	 */
+	private int getFacets(FullTextQuery ftq, FacetingRequest[] facetingRequests, Map<String, List<Facet>> facets) {
+		FacetManager facetManager = ftq.getFacetManager();
+		for (FacetingRequest request : facetingRequests) {
+			facetManager.enableFaceting(request);
+		}
+		int total = ftq.getResultSize();
+		for (FacetingRequest request : facetingRequests) {
+			facets.put(request.getFacetingName(), facetManager.getFacets(request.getFacetingName()));
+		}
+		return total;
+	}
+
+	/**
+	 * 创建按离散值统计的分面请求，如类别、状态
+	 * 
+	 * @param facetingName 分面请求名
+	 * @param field 注解了@Facet的域名
+	 * @return 分面请求
+	 */
+	public FacetingRequest discreteFacet(String facetingName, String field) {
+		return getQueryBuilder().facet().name(facetingName).onField(field).discrete().createFacetingRequest();
+	}
+
+	/**
+	 * 创建按区间统计的分面请求，如价格区间。
+	 * 以boundaries为分界点划分出：小于第一个分界点、相邻两个分界点之间（含下限不含上限）、不小于最后一个分界点，共boundaries.length + 1个区间
+	 * 
+	 * @param facetingName 分面请求名
+	 * @param field 注解了@Facet的数值域名
+	 * @param boundaries 从小到大排列的分界点，类型需与域的类型一致
+	 * @return 分面请求
+	 */
+	@SafeVarargs
+	public final <T> FacetingRequest rangeFacet(String facetingName, String field, T... boundaries) {
+		if (boundaries.length == 0) {
+			throw new IllegalArgumentException("At least one boundary is required");
+		}
+		FacetRangeBelowContinuationContext<T> below = getQueryBuilder().facet().name(facetingName).onField(field)
+				.<T>range().below(boundaries[0]).excludeLimit();
+		if (boundaries.length == 1) {
+			return below.above(boundaries[0]).createFacetingRequest();
+		}
+		FacetRangeEndContext<T> end = below.from(boundaries[0]).to(boundaries[1]).excludeLimit();
+		for (int i = 1; i < boundaries.length - 1; i++) {
+			end = end.from(boundaries[i]).to(boundaries[i + 1]).excludeLimit();
+		}
+		return end.above(boundaries[boundaries.length - 1]).createFacetingRequest();
+	}
+
+	/**
+	 * @return 本实体类的查询构造器，可用于创建自定义的分面请求
+	 */
+	public QueryBuilder getQueryBuilder() {
+		FullTextEntityManager fem = Search.getFullTextEntityManager(entityManager);
+		return fem.getSearchFactory().buildQueryBuilder().forEntity(entityClass).get();
+	}
+
+	/**
+	 * 分页查询与query关键字相关，且满足参数对象example条件的实体对象。
+	 * example中直接注解在实体属性上的索引域条件会作为过滤条件下推到索引查询中；
+	 * 若所有条件都能在索引中精确匹配，则直接在索引中分页，否则先从索引中取出相关的id，再在数据库中以id和其余条件过滤。
+	 * 分页对象中没有排序时按相关度排序。
+	 * 
+	 * @param query 字符串关键字，为空时等同于queryForPage(example, pageable)
+	 * @param example 参数对象，为null时等同于search(query, pageable)
+	 * @param pageable 分页排序对象
+	 * @return 查询结果
+	 */
+	public Page<E> search(String query, E example, Pageable pageable) {
+		if (example == null) {
+			return search(query, pageable);
+		}
+		if (query == null || query.isEmpty()) {
+			return queryForPage(example, pageable);
+		}
+		try {
+			PushDown pushDown = new PushDown(example);
+			if (!pushDown.residual && !pageable.getSort().isSorted()) {
+				// 所有条件均已在索引中精确匹配，无需再访问数据库过滤
+				FullTextQuery ftq = getLuceneQuery(query, pushDown.filter);
+				int total = ftq.getResultSize();
+				ftq.setFirstResult((int) pageable.getOffset()).setMaxResults(pageable.getPageSize());
+				@SuppressWarnings("unchecked")
+				List<E> ls = ftq.getResultList();
+				return new PageImpl<E>(ls, pageable, total);
+			}
+			FullTextQuery ftq = getLuceneQuery(query, pushDown.filter).setProjection(ProjectionConstants.ID);
+			if (pageable.getSort().isSorted()) {
+				return queryForPage(example, ftq, pageable);
+			}
+			return queryForPageByRelevance(example, ftq, pageable);
+		} catch (SearchException e) {
+			LOG.catching(e);
+			return new PageImpl<E>(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * 按相关度顺序每次从索引中取出IN_CHUNK_SIZE个id，交给consumer处理，直到取完所有命中。
+	 * 分页期间索引若有变化，个别id可能重复或遗漏
+	 */
+	private void forEachIdChunk(FullTextQuery ftq, Consumer<List<Object>> consumer) {
+		int total = ftq.getResultSize();
+		for (int first = 0; first < total; first += IN_CHUNK_SIZE) {
+			List<?> rows = ftq.setFirstResult(first).setMaxResults(IN_CHUNK_SIZE).getResultList();
+			if (rows.isEmpty()) {
+				break;
+			}
+			List<Object> ids = new ArrayList<Object>(rows.size());
+			for (Object row : rows) {
+				ids.add(((Object[]) row)[0]);
+			}
+			consumer.accept(ids);
+		}
+	}
+
+	/**
+	 * 在数据库中按分页对象的排序查询满足example条件且id在索引命中中的实体。
+	 * 索引中的id按IN_CHUNK_SIZE分块查询，每块只取排序后的前offset+pageSize个实体，再在内存中按同样的排序归并，
+	 * 内存中只保留offset+pageSize个候选实体
+	 */
+	private Page<E> queryForPage(E example, FullTextQuery ftq, Pageable pageable) {
+		CriteriaBuilder b = entityManager.getCriteriaBuilder();
+		int limit = (int) pageable.getOffset() + pageable.getPageSize();
+		Comparator<E> comparator = getComparator(pageable.getSort());
+		long[] total = { 0 };
+		List<E> candidates = new ArrayList<E>();
+		forEachIdChunk(ftq, chunk -> {
+			CriteriaQuery<Long> c = b.createQuery(Long.class);
+			Root<E> r = c.from(entityClass);
+			c = c.select(b.count(r)).distinct(true).where(getRestrictions(example, chunk, r, b));
+			Long count = entityManager.createQuery(c).getSingleResult();
+			if (count == null || count == 0) {
+				return;
+			}
+			total[0] += count;
+			// 以子查询过滤，主查询无需distinct，排序中才能使用不在选择列表中的null排序表达式
+			CriteriaQuery<E> q = b.createQuery(entityClass);
+			r = q.from(entityClass);
+			Subquery<Object> sub = q.subquery(Object.class);
+			Root<E> sr = sub.from(entityClass);
+			sub.select(sr.get(getIdAttributeName())).where(getRestrictions(example, chunk, sr, b));
+			q = q.select(r).where(r.get(getIdAttributeName()).in(sub)).orderBy(getOrders(pageable.getSort(), r, b));
+			candidates.addAll(entityManager.createQuery(q).setMaxResults(limit).getResultList());
+			candidates.sort(comparator);
+			if (candidates.size() > limit) {
+				candidates.subList(limit, candidates.size()).clear();
+			}
+		});
+		int from = (int) Math.min(pageable.getOffset(), candidates.size());
+		int to = Math.min(from + pageable.getPageSize(), candidates.size());
+		return new PageImpl<E>(new ArrayList<E>(candidates.subList(from, to)), pageable, total[0]);
+	}
+
+	/**
+	 * 数据库对null的默认排序各不相同，这里显式地在每个排序属性前加上null的排序，与getComparator一致
+	 */
+	private List<Order> getOrders(Sort sort, Root<E> r, CriteriaBuilder b) {
+		List<Order> orders = new ArrayList<Order>();
+		for (Sort.Order order : sort) {
+			Order o = QueryUtils.toOrders(Sort.by(order), r, b).get(0);
+			boolean nullsFirst = isNullsFirst(order);
+			orders.add(b.asc(b.selectCase().when(b.isNull(o.getExpression()), nullsFirst ? 0 : 1).otherwise(nullsFirst ? 1 : 0)));
+			orders.add(o);
+		}
+		return orders;
+	}
+
+	/**
+	 * 未指定null的排序时，null视为最小的值，即升序时排在最前，降序时排在最后
+	 */
+	private boolean isNullsFirst(Sort.Order order) {
+		switch (order.getNullHandling()) {
+		case NULLS_FIRST:
+			return true;
+		case NULLS_LAST:
+			return false;
+		default:
+			return order.isAscending();
+		}
+	}
+
+	/**
+	 * 与getOrders生成的数据库排序一致的比较器，属性路径可以是嵌套的，如seller.name，中间的属性为null时其值视为null
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Comparator<E> getComparator(Sort sort) {
+		Comparator<E> comparator = null;
+		for (Sort.Order order : sort) {
+			Comparator<Object> values = (x, y) -> ((Comparable) x).compareTo(y);
+			if (order.isDescending()) {
+				values = values.reversed();
+			}
+			values = isNullsFirst(order) ? Comparator.nullsFirst(values) : Comparator.nullsLast(values);
+			Comparator<E> c = Comparator.comparing(e -> getSortValue(e, order), values);
+			comparator = comparator == null ? c : comparator.thenComparing(c);
+		}
+		return comparator;
+	}
+
+	private Object getSortValue(E entity, Sort.Order order) {
+		Object value;
+		try {
+			value = new BeanWrapperImpl(entity).getPropertyValue(order.getProperty());
+		} catch (NullValueInNestedPathException e) {
+			return null;
+		}
+		if (order.isIgnoreCase() && value instanceof String) {
+			return ((String) value).toLowerCase();
+		}
+		return value;
+	}
+
+	/**
+	 * 在数据库中逐块过滤出满足example条件的id，按索引中的相关度顺序计数，只保留并加载本页的实体
+	 */
+	private Page<E> queryForPageByRelevance(E example, FullTextQuery ftq, Pageable pageable) {
+		CriteriaBuilder b = entityManager.getCriteriaBuilder();
+		long offset = pageable.getOffset();
+		long[] total = { 0 };
+		List<Object> pageIds = new ArrayList<Object>(pageable.getPageSize());
+		forEachIdChunk(ftq, chunk -> {
+			CriteriaQuery<Object> q = b.createQuery();
+			Root<E> r = q.from(entityClass);
+			q = q.select(r.get(getIdAttributeName())).distinct(true).where(getRestrictions(example, chunk, r, b));
+			Set<Object> matched = new HashSet<Object>(entityManager.createQuery(q).getResultList());
+			for (Object id : chunk) {
+				if (matched.contains(id)) {
+					if (total[0] >= offset && pageIds.size() < pageable.getPageSize()) {
+						pageIds.add(id);
+					}
+					total[0]++;
+				}
+			}
+		});
+		return new PageImpl<E>(loadInOrder(pageIds), pageable, total[0]);
+	}
+
+	/**
+	 * 按id加载实体，并保持ids中的顺序，数据库中已不存在的实体会被忽略
+	 */
+	List<E> loadInOrder(List<?> ids) {
+		return loadInOrder(entityManager, ids);
+	}
+
+	private List<E> loadInOrder(EntityManager em, List<?> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<E>();
+		}
+		CriteriaBuilder b = em.getCriteriaBuilder();
+		CriteriaQuery<E> q = b.createQuery(entityClass);
+		Root<E> r = q.from(entityClass);
+		q = q.select(r).where(r.get(getIdAttributeName()).in(ids));
+		Map<Object, E> map = new HashMap<Object, E>();
+		for (E e : em.createQuery(q).getResultList()) {
+			map.put(entityManagerFactory.getPersistenceUnitUtil().getIdentifier(e), e);
+		}
+		List<E> result = new ArrayList<E>(ids.size());
+		for (Object id : ids) {
+			E e = map.get(id);
+			if (e != null) {
+				result.add(e);
+			}
+		}
+		return result;
+	}
+
+	private Predicate[] getRestrictions(E example, Collection<Object> ids, Root<E> r, CriteriaBuilder b) {
+		Set<Predicate> predicates = example == null ? new HashSet<Predicate>() : getPredicates(example, r, b);
+		predicates.add(r.get(getIdAttributeName()).in(ids));
+		return predicates.toArray(new Predicate[predicates.size()]);
+	}
+
+	/**
+	 * 分析参数对象中直接注解在实体属性上的索引域，将其转换为索引的过滤条件。
+	 * 不分词且使用StringBridgeCustomization的非字符串值可精确匹配，匹配的词由该域的桥接器转换；
+	 * 分词的域则以短语匹配，它比数据库中的条件宽松，只用于缩小范围，仍需在数据库中过滤。
+	 * 与getPredicates按同样的规则遍历参数对象，记录每个条件是否已精确下推。
+	 */
+	private class PushDown {
+		/** 下推到索引中的过滤条件，没有时为null */
+		Query filter;
+		/** 已在索引中精确匹配的属性名 */
+		final Set<String> exact = new HashSet<String>();
+		/** 是否还有未在索引中精确匹配的条件，有则仍需在数据库中过滤 */
+		boolean residual;
+
+		PushDown(E example) {
+			BooleanQuery.Builder bool = new BooleanQuery.Builder();
+			int clauses = 0;
+			for (EntityProperty prop : getEntityProperties(example.getClass())) {
+				// @Instruction注解的属性在下面的自定义条件中处理
+				if (prop.getAnnotation(ExcludeCondition.class) != null || prop.getAnnotation(Instruction.class) != null) {
+					continue;
+				}
+				Object value = prop.getValue(example);
+				if (!isCondition(prop.getAnnotation(ZeroCondition.class), prop.getType(), value)) {
+					continue;
+				}
+				List<Field> fieldAnnos = new ArrayList<Field>();
+				if (EntityInspector.isValueType(prop.getType())) {
+					if (prop.getAnnotation(Field.class) != null) {
+						fieldAnnos.add(prop.getAnnotation(Field.class));
+					}
+					if (prop.getAnnotation(Fields.class) != null) {
+						fieldAnnos.addAll(Arrays.asList(prop.getAnnotation(Fields.class).value()));
+					}
+				}
+				Query clause = null;
+				for (Field f : fieldAnnos) {
+					String field = f.name().isEmpty() ? prop.name : f.name();
+					if (!(value instanceof String) && f.analyze() == Analyze.NO
+							&& StringBridgeCustomization.class.equals(f.bridge().impl())) {
+						clause = getQueryBuilder().keyword().onField(field).matching(value).createQuery();
+						exact.add(prop.name);
+						break;
+					}
+				}
+				if (clause == null) {
+					residual = true;
+					String text = value.toString().trim();
+					// 数据库中字符串使用LIKE比较，含通配符时无法转换为短语
+					boolean wildcard = value instanceof String && (text.indexOf('%') >= 0 || text.indexOf('_') >= 0);
+					for (Field f : fieldAnnos) {
+						boolean asString = value instanceof String || StringBridgeCustomization.class.equals(f.bridge().impl());
+						if (asString && f.analyze() != Analyze.NO && !text.isEmpty() && !wildcard) {
+							String field = f.name().isEmpty() ? prop.name : f.name();
+							clause = getQueryBuilder().phrase().onField(field).ignoreFieldBridge().sentence(text).createQuery();
+							break;
+						}
+					}
+				}
+				if (clause != null) {
+					bool.add(clause, Occur.FILTER);
+					clauses++;
+				}
+			}
+			for (Condition condition : getConditions(example.getClass())) {
+				if (condition.getAnnotation(ExcludeCondition.class) == null && isCondition(
+						condition.getAnnotation(ZeroCondition.class), condition.getType(), condition.getValue(example))) {
+					residual = true;
+				}
+			}
+			filter = clauses == 0 ? null : bool.build();
+		}
+
+		/**
+		 * @return 该值在getPredicates中是否会成为查询条件
+		 */
+		private boolean isCondition(ZeroCondition zeroCondition, Class<?> type, Object value) {
+			if (value == null || (zeroCondition == null && isZeroValue(type, value))) {
+				return false;
+			}
+			return !(value instanceof Collection) || !((Collection<?>) value).isEmpty();
+		}
+	}
+
+	/**
+	 * 分页查询与query关键字相关的实体对象，并返回各索引域中与关键字匹配的高亮片段。
+	 * 高亮直接读取索引中的词向量，不会重新分词整个域的文本，所以需要高亮的域应存储原文并开启带位置和偏移量的词向量：
+	 * {@code @Field(store = Store.YES, termVector = TermVector.WITH_POSITION_OFFSETS)}，其他域不会出现在高亮结果中。
+	 * 分页对象中有排序时与search(query, pageable)一样在数据库中按排序属性分页，再按id找到各实体的文档获取高亮片段。
+	 * 本方法通过索引中存储的id加载实体，只支持能由字符串转换的单一id。
+	 * 
+	 * @param query 字符串关键字
+	 * @param pageable 分页排序对象
+	 * @return 实体及其高亮片段
+	 */
+	public Page<Highlighted<E>> searchWithHighlight(String query, Pageable pageable) {
+		if (query == null || query.isEmpty()) {
+			return queryForPage(null, pageable).map(e -> new Highlighted<E>(e, Collections.emptyMap()));
+		}
+		FullTextEntityManager fem = getFullTextEntityManager();
+		IndexReaderAccessor accessor = fem.getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = accessor.open(entityClass);
+		try {
+			Query lucene = getKeywordQuery(fem, query, null);
+			IndexSearcher searcher = new IndexSearcher(reader);
+			FastVectorHighlighter highlighter = new FastVectorHighlighter();
+			FieldQuery fieldQuery = highlighter.getFieldQuery(lucene, reader);
+			if (pageable.getSort().isSorted()) {
+				Page<E> page = queryForPage(null, getLuceneQuery(query).setProjection(ProjectionConstants.ID), pageable);
+				List<Highlighted<E>> ls = new ArrayList<Highlighted<E>>(page.getNumberOfElements());
+				for (E e : page) {
+					Object id = entityManagerFactory.getPersistenceUnitUtil().getIdentifier(e);
+					Query byId = new BooleanQuery.Builder().add(getClassQuery(), Occur.FILTER)
+							.add(new TermQuery(new Term(getIdAttributeName(), id.toString())), Occur.FILTER).build();
+					TopDocs hit = searcher.search(byId, 1);
+					ls.add(new Highlighted<E>(e, hit.scoreDocs.length == 0 ? Collections.<String, String[]>emptyMap()
+							: getFragments(highlighter, fieldQuery, reader, hit.scoreDocs[0].doc)));
+				}
+				return new PageImpl<Highlighted<E>>(ls, pageable, page.getTotalElements());
+			}
+			int offset = (int) pageable.getOffset();
+			// 高亮只需关键字查询，搜索时还需限定本实体类的文档
+			TopDocs topDocs = searcher.search(getKeywordQuery(fem, query, getClassQuery()),
+					Math.max(1, offset + pageable.getPageSize()));
+			List<Object> ids = new ArrayList<Object>();
+			Map<Object, Map<String, String[]>> fragmentsMap = new HashMap<Object, Map<String, String[]>>();
+			for (int i = offset; i < topDocs.scoreDocs.length; i++) {
+				int docId = topDocs.scoreDocs[i].doc;
+				Object id = getDocumentId(searcher, docId);
+				ids.add(id);
+				fragmentsMap.put(id, getFragments(highlighter, fieldQuery, reader, docId));
+			}
+			List<Highlighted<E>> ls = new ArrayList<Highlighted<E>>(ids.size());
+			for (E e : loadInOrder(ids)) {
+				Object id = entityManagerFactory.getPersistenceUnitUtil().getIdentifier(e);
+				ls.add(new Highlighted<E>(e, fragmentsMap.get(id)));
+			}
+			return new PageImpl<Highlighted<E>>(ls, pageable, topDocs.totalHits);
+		} catch (IOException | SearchException e) {
+			LOG.catching(e);
+			return new PageImpl<Highlighted<E>>(new ArrayList<>());
+		} finally {
+			accessor.close(reader);
+		}
+	}
+
+	/**
+	 * @return 文档中各索引域与关键字匹配的高亮片段，没有匹配的域不在其中
+	 */
+	private Map<String, String[]> getFragments(FastVectorHighlighter highlighter, FieldQuery fieldQuery,
+			IndexReader reader, int docId) throws IOException {
+		Map<String, String[]> fragments = new LinkedHashMap<String, String[]>();
+		for (String field : onFields) {
+			String[] frags = highlighter.getBestFragments(fieldQuery, reader, docId, field, fragmentSize, maxFragments);
+			if (frags != null && frags.length > 0) {
+				fragments.put(field, frags);
+			}
+		}
+		return fragments;
+	}
+
+	/**
+	 * 基于游标分页查询与query关键字相关的实体对象，只收集after之后的size个命中，深度翻页时开销不会随页码增长。
+	 * 本方法通过索引中存储的id加载实体，只支持能由字符串转换的单一id。
+	 * 
+	 * @param query 字符串关键字
+	 * @param after 上一页返回的CursorPage#getAfter()，为null时从第一页开始
+	 * @param size 每页大小
+	 * @return 本页的实体以及获取下一页的游标
+	 * @throws IllegalArgumentException 游标格式不正确
+	 */
+	public CursorPage<E> searchAfter(String query, String after, int size) {
+		ScoreDoc last = SearchCursor.decode(after);
+		FullTextEntityManager fem = getFullTextEntityManager();
+		IndexReaderAccessor accessor = fem.getSearchFactory().getIndexReaderAccessor();
+		IndexReader reader = accessor.open(entityClass);
+		try {
+			IndexSearcher searcher = new IndexSearcher(reader);
+			TopDocs topDocs = searcher.searchAfter(last, getKeywordQuery(fem, query, getClassQuery()), size);
+			ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+			List<Object> ids = new ArrayList<Object>(scoreDocs.length);
+			for (ScoreDoc sd : scoreDocs) {
+				ids.add(getDocumentId(searcher, sd.doc));
+			}
+			String next = scoreDocs.length < size ? null : SearchCursor.encode(scoreDocs[scoreDocs.length - 1]);
+			return new CursorPage<E>(loadInOrder(ids), topDocs.totalHits, next);
+		} catch (IOException | SearchException e) {
+			LOG.catching(e);
+			return new CursorPage<E>(new ArrayList<E>(), 0, null);
+		} finally {
+			accessor.close(reader);
+		}
+	}
+
+	/**
+	 * 从索引中存储的id域读取实体的id
+	 */
+	private Object getDocumentId(IndexSearcher searcher, int docId) throws IOException {
+		String idField = getIdAttributeName();
+		String value = searcher.doc(docId, Collections.singleton(idField)).get(idField);
+		return DefaultConversionService.getSharedInstance().convert(value, idClass);
+	}
+
+	/**
+	 * 输入提示，匹配索引域对应的字符串属性中任意词的前缀，直接查询内存中的提示索引，不会访问数据库。
+	 * 首次调用时会从数据库中构建提示索引，之后通过实体的增删改事件增量更新，也可通过setSuggesterRebuildInterval定期重建。
+	 * 
+	 * @param prefix 输入的前缀
+	 * @param num 最多返回的数量
+	 * @return 按拥有该取值的实体数从高到低排列的提示
+	 */
+	public List<String> suggest(String prefix, int num) {
+		if (prefix == null || prefix.trim().isEmpty()) {
+			return new ArrayList<String>();
+		}
+		EntitySuggester suggester = getSuggester();
+		try {
+			if (!suggester.isBuilt()) {
+				synchronized (suggester) {
+					if (!suggester.isBuilt()) {
+						rebuildSuggester();
+					}
+				}
+			}
+			return suggester.lookup(prefix.trim(), num);
+		} catch (IOException e) {
+			LOG.catching(e);
+			return new ArrayList<String>();
+		}
+	}
+
+	/**
+	 * 从数据库中统计各字符串属性的取值及拥有该取值的实体数，重建输入提示
+	 */
+	public void rebuildSuggester() {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			Map<String, Long> counts = new HashMap<String, Long>();
+			CriteriaBuilder b = em.getCriteriaBuilder();
+			for (String propertyPath : suggestPaths) {
+				CriteriaQuery<Object[]> q = b.createQuery(Object[].class);
+				Root<E> r = q.from(entityClass);
+				From<?, ?> from = r;
+				String[] names = propertyPath.split("\\.");
+				for (int i = 0; i < names.length - 1; i++) {
+					from = from.join(names[i]);
+				}
+				Path<Object> path = from.get(names[names.length - 1]);
+				q = q.multiselect(path, b.countDistinct(r)).groupBy(path);
+				for (Object[] row : em.createQuery(q).getResultList()) {
+					if (row[0] instanceof String && !((String) row[0]).isEmpty()) {
+						counts.merge((String) row[0], (Long) row[1], Long::sum);
+					}
+				}
+			}
+			getSuggester().build(counts);
+			LOG.debug("The suggester of {} is rebuilt with {} entries", entityClass.getSimpleName(), counts.size());
+		} catch (IOException e) {
+			throw new InnerDataStateException(e);
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * @param suggesterRebuildInterval 定期重建输入提示的间隔毫秒数，默认10分钟，为0时不定期重建，需在初始化前设置
+	 */
+	public void setSuggesterRebuildInterval(long suggesterRebuildInterval) {
+		this.suggesterRebuildInterval = suggesterRebuildInterval;
+	}
+
+	/**
+	 * 增删改事件在Spring管理的事务提交后才更新输入提示，回滚的事务不会影响它；
+	 * 不在Spring事务中发布的事件（如直接使用EntityTransaction）无法得知是否提交，会立即处理，由定期重建校正。
+	 * 需开启@EnableTransactionManagement，否则事件会在发布时立即处理。
+	 */
+	@TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+	public void onCreateEntity(CreateEntityEvent event) {
+		adjustSuggester(event.entity, 1);
+	}
+
+	@TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+	public void onUpdateEntity(UpdateEntityEvent event) {
+		// 无法得知修改前的取值，只添加新的取值，旧取值及权重由定期重建校正
+		adjustSuggester(event.entity, 0);
+	}
+
+	@TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+	public void onDeleteEntity(DeleteEntityEvent event) {
+		adjustSuggester(event.entity, -1);
+	}
+
+	/**
+	 * 根据实体顶层的字符串属性增量更新输入提示，关联对象中的取值由重建时统计
+	 * 
+	 * @param entity 增删改的实体
+	 * @param delta 权重的增量，为0时表示若没有该取值则添加
+	 */
+	private void adjustSuggester(Object entity, long delta) {
+		if (!entityClass.isInstance(entity)) {
+			return;
+		}
+		EntitySuggester suggester = SUGGESTERS.get(getStateKey());
+		if (suggester == null || !suggester.isBuilt()) {
+			return;
+		}
+		try {
+			for (EntityProperty prop : getEntityProperties(entityClass)) {
+				if (!suggestPaths.contains(prop.name)) {
+					continue;
+				}
+				Object value = prop.getValue(entity);
+				if (!(value instanceof String) || ((String) value).isEmpty()) {
+					continue;
+				}
+				if (delta == 0) {
+					suggester.addIfAbsent((String) value);
+				} else {
+					suggester.adjust((String) value, delta);
+				}
+			}
+		} catch (IOException e) {
+			LOG.catching(e);
+		}
+	}
+
+	private EntitySuggester getSuggester() {
+		return SUGGESTERS.computeIfAbsent(getStateKey(), k -> {
+			try {
+				return new EntitySuggester();
+			} catch (IOException e) {
+				throw new InnerDataStateException(e);
+			}
+		});
+	}
+
 }
@@ -0,0 +1,63 @@
+package com.github.emailtohl.pad.lucene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+
+/**
+ * 文件系统索引目录的实现方式。
+ * 与RAMDirectory不同，这些实现都不把索引放在Java堆中，MMapDirectory通过内存映射由操作系统的页缓存承载索引
+ *
+ * @author HeLei
+ */
+public enum DirectoryType {
+	/** 由FSDirectory.open按平台选择，64位JVM上即MMapDirectory */
+	FS,
+	/** 内存映射，读取索引不经过Java堆，适合大索引 */
+	MMAP,
+	/** 以FileChannel的位置读取，并发读不互相阻塞，适合不便使用内存映射的环境 */
+	NIO,
+	/** 在MMapDirectory外包装NRTCachingDirectory，近实时刷新产生的小段先缓存在内存中，减少频繁刷新的IO */
+	NRT_CACHING;
+
+	/** NRT_CACHING中，合并后不超过该大小（MB）的段才会被缓存 */
+	public static final double NRT_MAX_MERGE_SIZE_MB = 5.0;
+	/** NRT_CACHING中，缓存的段总大小（MB）上限 */
+	public static final double NRT_MAX_CACHED_MB = 60.0;
+
+	/**
+	 * @param path 索引所在的目录
+	 * @return 该类型的索引目录
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public Directory open(Path path) throws IOException {
+		switch (this) {
+		case MMAP:
+			return new MMapDirectory(path);
+		case NIO:
+			return new NIOFSDirectory(path);
+		case NRT_CACHING:
+			return openNrtCaching(path, NRT_MAX_MERGE_SIZE_MB, NRT_MAX_CACHED_MB);
+		default:
+			return FSDirectory.open(path);
+		}
+	}
+
+	/**
+	 * 以指定的缓存大小打开NRT_CACHING类型的索引目录
+	 *
+	 * @param path 索引所在的目录
+	 * @param maxMergeSizeMB 合并后不超过该大小（MB）的段才会被缓存
+	 * @param maxCachedMB 缓存的段总大小（MB）上限
+	 * @return 索引目录
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public static Directory openNrtCaching(Path path, double maxMergeSizeMB, double maxCachedMB) throws IOException {
+		return new NRTCachingDirectory(new MMapDirectory(path), maxMergeSizeMB, maxCachedMB);
+	}
+}
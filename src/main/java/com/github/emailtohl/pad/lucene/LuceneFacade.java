@@ -2,12 +2,37 @@ package com.github.emailtohl.pad.lucene;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -21,35 +46,59 @@ import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.index.TrackingIndexWriter;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager.RefreshListener;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
-import org.apache.lucene.util.BytesRefBuilder;
-import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 
+import com.github.emailtohl.pad.util.LruCache;
 import com.github.emailtohl.pad.util.SnowFlake;
 
 /**
  * <p>对Lucene的IndexWriter和IndexReader进行简易的封装</p>
- * <p>主要是自实现IndexWriter和IndexReader的线程控制，确保索引更新后，IndexReader在没有运行时关闭并重建</p>
+ * <p>搜索器由SearcherManager按引用计数管理，索引更新后换用新的IndexReader，旧的在没有搜索使用时才关闭，搜索不会等待写入</p>
+ * <p>修改按提交策略批量提交，并由后台线程近实时地重新打开搜索器，默认每次修改都提交并等待其对搜索可见</p>
  * <p>仿数据库的访问方式，会自动为Document添加上id和creation_time</p>
+ * <p>用完后必须调用close：后台的重新打开线程持有搜索器，搜索器的刷新监听又持有本对象，未关闭的实例不会被垃圾回收</p>
  * 
  * @author HeLei
  */
@@ -58,6 +107,18 @@ public class LuceneFacade implements AutoCloseable {
 	public static final String ID_NAME = "Snowflake_Id";
 	/** Document的属性名，创建时间 */
 	public static final String CREATION_TIME = "CREATION_TIME";
+	/** 按创建时间倒序排列，CREATION_TIME有DocValues，排序时不必加载存储域 */
+	public static final Sort NEWEST_FIRST = new Sort(new SortField(CREATION_TIME, SortField.Type.LONG, true));
+	/** 没有等待者时，修改最迟在该秒数后对搜索可见 */
+	public static final double MAX_STALE_SEC = 1.0;
+	/** 有等待者时，重新打开搜索器的最小间隔秒数 */
+	public static final double MIN_STALE_SEC = 0.0;
+	/** 定期提交的调度器 */
+	private static final ScheduledExecutorService COMMIT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "lucene-facade-commit");
+		t.setDaemon(true);
+		return t;
+	});
 	/** 索引和查询时使用的分词器 */
 	public final Analyzer analyzer;
 	/** id 生成工具 */
@@ -66,16 +127,52 @@ public class LuceneFacade implements AutoCloseable {
 	private final Logger LOG = LogManager.getLogger();
 	/** 记录文档有哪些属性，便于查询 */
 	private final Set<String> indexableFieldNames = new CopyOnWriteArraySet<String>();
+	/** indexableFieldNames的快照，只在出现新的域名时重建 */
+	private volatile String[] fieldNames = new String[0];
+	/** 域名集合的版本，每出现一个新的域名加一 */
+	private volatile int fieldsVersion;
+	/** QueryParser不是线程安全的，每个线程复用自己的解析器，域名集合变化后重建 */
+	private final ThreadLocal<VersionedParser> parsers = new ThreadLocal<VersionedParser>();
+	/** 以域名集合的版本和查询字符串为键，缓存解析后的查询，为null时不缓存 */
+	private volatile LruCache<List<Object>, Query> queryCache = new LruCache<List<Object>, Query>(256);
 	/** 默认查询前TOP_HITS个文档 */
 	private final int DEFAULT_TOP_HITS = 100;
 	/** 索引写入器 */
 	private final IndexWriter writer;
-	/** 索引读取器 */
-	private IndexReader reader;
-	/** 搜索器 */
-	private IndexSearcher searcher;
-	/** 查询线程的计数器，没有修改索引或没有执行查询时为0，修改索引会小于0，执行查询会大于0 */
-	private volatile int queryCount = 0;
+	/** 记录每次修改的代数，用于等待修改对搜索可见 */
+	private final TrackingIndexWriter tracker;
+	/** 管理搜索器的引用计数，索引变更后换用新的搜索器，旧的在最后一个使用者归还后关闭 */
+	private final SearcherManager searcherManager;
+	/** 在后台从IndexWriter近实时地重新打开搜索器 */
+	private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+	/** 还未提交的修改数 */
+	private final AtomicInteger uncommittedDocs = new AtomicInteger();
+	/** 未提交的修改达到该数量时提交，不大于0时不按数量提交 */
+	private volatile int commitEveryDocs = 1;
+	/** 修改后是否等待其对搜索可见 */
+	private volatile boolean waitUntilVisible = true;
+	/** 定期提交的任务 */
+	private ScheduledFuture<?> commitTask;
+	/** 批量索引期间IndexWriter的内存缓冲大小，缓冲越大刷新出的段越少 */
+	private volatile double bulkRamBufferSizeMB = 256.0;
+	/** 批量索引期间每层允许的段数，合并次数因此减少，结束后恢复 */
+	private volatile double bulkSegmentsPerTier = 50.0;
+	/** 同一时间只允许一个批量索引调整写入器的配置 */
+	private final Object bulkLock = new Object();
+	/** 缓存搜索结果中本页的命中，文档在每次搜索时重新加载，为null时不缓存 */
+	private volatile LruCache<List<Object>, TopDocs> resultCache;
+	/** 运行指标 */
+	private final LuceneMetrics metrics;
+	/** 由本类打开的索引目录，关闭时一并关闭 */
+	private final Directory ownedDirectory;
+	/** 临时索引目录，关闭时删除 */
+	private final Path temporaryPath;
+	/** 注册到JMX时的名字，未注册时为null */
+	private ObjectName mbeanName;
+	/** 高亮片段的字符数 */
+	private volatile int fragmentSize = 100;
+	/** 每个域最多返回的高亮片段数 */
+	private volatile int maxFragments = 3;
 	
 	/**
 	 * 构造LuceneClient
@@ -86,14 +183,55 @@ public class LuceneFacade implements AutoCloseable {
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	public LuceneFacade(Directory indexPath, Analyzer analyzer, long workerId, long datacenterId) throws IOException {
+		this(indexPath, analyzer, workerId, datacenterId, false, null);
+	}
+
+	/**
+	 * @param owned 索引目录是否由本类打开，是则关闭时一并关闭，构造失败时也会关闭
+	 * @param temporaryPath 临时索引目录，关闭或构造失败时删除，不是临时目录时为null
+	 */
+	private LuceneFacade(Directory indexPath, Analyzer analyzer, long workerId, long datacenterId, boolean owned,
+			Path temporaryPath) throws IOException {
 		this.analyzer = analyzer;
+		this.ownedDirectory = owned ? indexPath : null;
+		this.temporaryPath = temporaryPath;
 		IndexWriterConfig conf = new IndexWriterConfig(analyzer);
 		// 每一次访问，创建新的索引,第二次访问，删掉原来的创建新的索引
 		conf.setOpenMode(OpenMode.CREATE);
-		this.writer = new IndexWriter(indexPath, conf);
-		this.reader = DirectoryReader.open(writer);
-		this.searcher = new IndexSearcher(reader);
-		this.idCreator = new SnowFlake(workerId, datacenterId);
+		IndexWriter writer = null;
+		try {
+			this.idCreator = new SnowFlake(workerId, datacenterId);
+			writer = new IndexWriter(indexPath, conf);
+			this.searcherManager = new SearcherManager(writer, null);
+		} catch (IOException | RuntimeException e) {
+			IOUtils.closeWhileHandlingException(writer, ownedDirectory);
+			deleteTemporaryPath(temporaryPath, e);
+			throw e;
+		}
+		this.writer = writer;
+		this.tracker = new TrackingIndexWriter(writer);
+		this.searcherManager.addListener(new RefreshListener() {
+			@Override
+			public void beforeRefresh() {
+				metrics.beforeRefresh();
+			}
+
+			@Override
+			public void afterRefresh(boolean didRefresh) {
+				metrics.afterRefresh(didRefresh);
+				// 换用新的IndexReader后，缓存的结果都已过时
+				LruCache<List<Object>, TopDocs> cache = resultCache;
+				if (didRefresh && cache != null) {
+					cache.clear();
+				}
+			}
+		});
+		this.reopenThread = new ControlledRealTimeReopenThread<IndexSearcher>(tracker, searcherManager, MAX_STALE_SEC, MIN_STALE_SEC);
+		this.reopenThread.setName("lucene-nrt-reopen");
+		this.reopenThread.setDaemon(true);
+		// 构造完成后才将this交给运行指标和后台刷新线程
+		this.metrics = new LuceneMetrics(this);
+		this.reopenThread.start();
 	}
 	
 	/**
@@ -124,16 +262,85 @@ public class LuceneFacade implements AutoCloseable {
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	public LuceneFacade(String indexPath) throws IOException {
-		this(FSDirectory.open(Paths.get(indexPath)), new StandardAnalyzer());
+		this(indexPath, DirectoryType.FS);
 	}
 	
 	/**
-	 * 若使用默认构造器，则索引基于内存
+	 * 以指定的方式打开文件系统的索引目录，关闭时一并关闭该目录
+	 * 
+	 * @param indexPath 文件系统的索引目录
+	 * @param directoryType 索引目录的实现方式
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public LuceneFacade(String indexPath, DirectoryType directoryType) throws IOException {
+		this(Paths.get(indexPath), directoryType, false);
+	}
+	
+	/**
+	 * 在临时目录中建立索引，关闭时删除。
+	 * 若有/dev/shm（tmpfs），则建在其中，索引数据在内存里却不占用Java堆，大索引可代替RAMDirectory
+	 * 
+	 * @param directoryType 索引目录的实现方式，一般为MMAP
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public LuceneFacade(DirectoryType directoryType) throws IOException {
+		this(createTemporaryPath(), directoryType, true);
+	}
+	
+	private LuceneFacade(Path indexPath, DirectoryType directoryType, boolean temporary) throws IOException {
+		this(openDirectory(indexPath, directoryType, temporary), new StandardAnalyzer(),
+				new Random().nextInt((int) SnowFlake.MAX_DATACENTER_NUM), new Random().nextInt((int) SnowFlake.MAX_MACHINE_NUM),
+				true, temporary ? indexPath : null);
+	}
+	
+	/**
+	 * 若使用默认构造器，则索引基于内存，存放在Java堆中，只适合小索引
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	public LuceneFacade() throws IOException {
 		this(new RAMDirectory(), new StandardAnalyzer());
 	}
+	
+	/**
+	 * @return 临时索引目录，优先建在tmpfs中
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	private static Path createTemporaryPath() throws IOException {
+		Path shm = Paths.get("/dev/shm");
+		Path parent = Files.isDirectory(shm) && Files.isWritable(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+		return Files.createTempDirectory(parent, "lucene-facade-");
+	}
+
+	/**
+	 * 打开索引目录，失败时删除临时索引目录
+	 */
+	private static Directory openDirectory(Path indexPath, DirectoryType directoryType, boolean temporary) throws IOException {
+		try {
+			return directoryType.open(indexPath);
+		} catch (IOException | RuntimeException e) {
+			deleteTemporaryPath(temporary ? indexPath : null, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * 构造失败时删除临时索引目录，删除时的异常附加到导致失败的异常上
+	 */
+	private static void deleteTemporaryPath(Path temporaryPath, Exception cause) {
+		try {
+			deleteTemporaryPath(temporaryPath);
+		} catch (IOException e) {
+			cause.addSuppressed(e);
+		}
+	}
+
+	private static void deleteTemporaryPath(Path temporaryPath) throws IOException {
+		if (temporaryPath != null && Files.exists(temporaryPath)) {
+			try (Stream<Path> paths = Files.walk(temporaryPath)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
 
 	/**
 	 * 将多个Document添加进索引，indexWriter是线程安全的，修改索引不必加锁
@@ -142,22 +349,147 @@ public class LuceneFacade implements AutoCloseable {
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	public void index(List<Document> documents) throws IOException {
+		index(documents, idCreator::nextId);
+	}
+	
+	/**
+	 * 以外部生成的id将多个Document添加进索引，供分片时由上层统一生成id
+	 * 
+	 * @param documents 要添加进索引的文档
+	 * @param ids 依次为每个文档提供id
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	void index(List<Document> documents, LongSupplier ids) throws IOException {
+		long generation = tracker.getGeneration();
 		for (Document doc : documents) {
-			doc.add(new LongField(ID_NAME, idCreator.nextId(), Store.YES));
-			doc.add(new LongField(CREATION_TIME, System.currentTimeMillis(), Store.YES));
+			addSystemFields(doc, ids.getAsLong());
 			for (IndexableField field : doc.getFields()) {
-				indexableFieldNames.add(field.name());
+				registerField(field.name());
 				if (LOG.isTraceEnabled() && field.fieldType().tokenized()) {
 					inspectToken(field.name(), field.stringValue());
 				}
 			}
-			writer.addDocument(doc);
+			generation = tracker.addDocument(doc);
 		}
-		writer.commit();
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("numDocs: {}", writer.numDocs());
 		}
-		refreshIndexReader();
+		metrics.indexed(documents.size());
+		afterWrite(generation, documents.size());
+	}
+
+	/**
+	 * 批量索引，使用与CPU核数相同的线程
+	 * 
+	 * @param documents 要添加进索引的文档流，逐个读取，不必事先全部构建在内存中
+	 * @return 批量索引的统计
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public BulkResult indexAll(Stream<Document> documents) throws IOException {
+		return indexAll(documents.iterator(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 批量索引：多个线程从迭代器中取出文档并添加进索引，indexWriter是线程安全的。
+	 * 期间调大内存缓冲并减少段合并，结束后恢复原配置，并只提交一次。
+	 * 为了吞吐不做分词的跟踪日志。
+	 * 
+	 * @param documents 要添加进索引的文档，执行后，每个Document中会添加id属性
+	 * @param threads 索引线程数，不大于0时使用CPU核数
+	 * @return 批量索引的统计
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public BulkResult indexAll(Iterator<Document> documents, int threads) throws IOException {
+		int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		synchronized (bulkLock) {
+			LiveIndexWriterConfig config = writer.getConfig();
+			double ramBufferSizeMB = config.getRAMBufferSizeMB();
+			MergePolicy mergePolicy = config.getMergePolicy();
+			double segmentsPerTier = 0;
+			config.setRAMBufferSizeMB(bulkRamBufferSizeMB);
+			if (mergePolicy instanceof TieredMergePolicy) {
+				segmentsPerTier = ((TieredMergePolicy) mergePolicy).getSegmentsPerTier();
+				((TieredMergePolicy) mergePolicy).setSegmentsPerTier(Math.max(segmentsPerTier, bulkSegmentsPerTier));
+			}
+			long start = System.currentTimeMillis();
+			ExecutorService executor = Executors.newFixedThreadPool(n, r -> {
+				Thread t = new Thread(r, "lucene-bulk-index");
+				t.setDaemon(true);
+				return t;
+			});
+			try {
+				List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+				for (int i = 0; i < n; i++) {
+					workers.add(() -> {
+						int count = 0;
+						Document doc;
+						while ((doc = nextOf(documents)) != null) {
+							addSystemFields(doc, idCreator.nextId());
+							for (IndexableField field : doc.getFields()) {
+								registerField(field.name());
+							}
+							tracker.addDocument(doc);
+							count++;
+						}
+						return count;
+					});
+				}
+				int docs = 0;
+				for (Future<Integer> future : executor.invokeAll(workers)) {
+					docs += future.get();
+				}
+				metrics.indexed(docs);
+				uncommittedDocs.addAndGet(docs);
+				commit();
+				if (waitUntilVisible) {
+					waitForGeneration(tracker.getGeneration());
+				}
+				BulkResult result = new BulkResult(docs, System.currentTimeMillis() - start);
+				LOG.debug("{}", result);
+				return result;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Bulk indexing interrupted", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException(cause);
+			} finally {
+				executor.shutdownNow();
+				config.setRAMBufferSizeMB(ramBufferSizeMB);
+				if (mergePolicy instanceof TieredMergePolicy) {
+					((TieredMergePolicy) mergePolicy).setSegmentsPerTier(segmentsPerTier);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 多个线程共享一个迭代器，须同步读取
+	 */
+	private Document nextOf(Iterator<Document> documents) {
+		synchronized (documents) {
+			return documents.hasNext() ? documents.next() : null;
+		}
+	}
+
+	/**
+	 * @param bulkRamBufferSizeMB 批量索引期间IndexWriter的内存缓冲大小（MB）
+	 */
+	public void setBulkRamBufferSizeMB(double bulkRamBufferSizeMB) {
+		this.bulkRamBufferSizeMB = bulkRamBufferSizeMB;
+	}
+
+	/**
+	 * @param bulkSegmentsPerTier 批量索引期间TieredMergePolicy每层允许的段数
+	 */
+	public void setBulkSegmentsPerTier(double bulkSegmentsPerTier) {
+		this.bulkSegmentsPerTier = bulkSegmentsPerTier;
 	}
 
 	/**
@@ -167,18 +499,26 @@ public class LuceneFacade implements AutoCloseable {
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	public long create(Document document) throws IOException {
-		long id = idCreator.nextId();
-		document.add(new LongField(ID_NAME, id, Store.YES));
-		document.add(new LongField(CREATION_TIME, System.currentTimeMillis(), Store.YES));
+		return create(document, idCreator.nextId());
+	}
+	
+	/**
+	 * 以外部生成的id添加一个文档进索引
+	 * @param document 新增的文档
+	 * @param id 文档的id
+	 * @return 文档的id
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	long create(Document document, long id) throws IOException {
+		addSystemFields(document, id);
 		for (IndexableField field : document.getFields()) {
-			indexableFieldNames.add(field.name());
+			registerField(field.name());
 			if (LOG.isTraceEnabled() && field.fieldType().tokenized()) {
 				inspectToken(field.name(), field.stringValue());
 			}
 		}
-		writer.addDocument(document);
-		writer.commit();
-		refreshIndexReader();
+		metrics.indexed(1);
+		afterWrite(tracker.addDocument(document), 1);
 		return id;
 	}
 	
@@ -188,29 +528,83 @@ public class LuceneFacade implements AutoCloseable {
 	 * @return lucene中的文档，若未查找到，则返回null
 	 */
 	public Document read(long id) {
-		Document doc = null;
+		return readAll(null, id).get(id);
+	}
+	
+	/**
+	 * 根据ID_NAME Field中的值，获取文档中指定的存储域
+	 * @param id ID_NAME Field中的值，能唯一标识这个文档
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @return lucene中的文档，若未查找到，则返回null
+	 */
+	public Document read(long id, Set<String> fieldsToLoad) {
+		return readAll(fieldsToLoad, id).get(id);
+	}
+	
+	/**
+	 * 一次获取多个文档
+	 * @param ids ID_NAME Field中的值
+	 * @return 以id为键，按ids的顺序排列，未查找到的id不在其中
+	 */
+	public Map<Long, Document> readAll(long... ids) {
+		return readAll(null, ids);
+	}
+	
+	/**
+	 * 一次获取多个文档：在每个段的词典中按字节序依次定位id，不经过查询的打分和收集，
+	 * 再只加载指定的存储域
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @param ids ID_NAME Field中的值
+	 * @return 以id为键，按ids的顺序排列，未查找到的id不在其中
+	 */
+	public Map<Long, Document> readAll(Set<String> fieldsToLoad, long... ids) {
+		long start = System.nanoTime();
+		Map<Long, Document> documents = new LinkedHashMap<Long, Document>();
+		// 排好序后，TermsEnum在词典中只需向前定位
+		TreeMap<BytesRef, Long> terms = new TreeMap<BytesRef, Long>();
+		for (long id : ids) {
+			terms.put(new BytesRef(idTerm(id)), id);
+		}
 		try {
-			// 若正在执行refreshIndexReader中，那么就在此处等待
-			// 同一时间也只能由一个查询线程修改queryCount
-			synchronized (this) {
-				queryCount++;
-			}
-			Query query = NumericRangeQuery.newLongRange(ID_NAME, id, id, true, true);
-			TopDocs docs = searcher.search(query, 1);
-			if (docs.scoreDocs.length == 0) {
-				return null;
+			IndexSearcher searcher = searcherManager.acquire();
+			try {
+				Map<Long, Integer> docIds = new HashMap<Long, Integer>();
+				PostingsEnum postings = null;
+				for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+					Terms idTerms = leaf.reader().terms(ID_NAME);
+					if (idTerms == null) {
+						continue;
+					}
+					TermsEnum termsEnum = idTerms.iterator();
+					Bits liveDocs = leaf.reader().getLiveDocs();
+					for (Map.Entry<BytesRef, Long> e : terms.entrySet()) {
+						if (docIds.containsKey(e.getValue()) || !termsEnum.seekExact(e.getKey())) {
+							continue;
+						}
+						postings = termsEnum.postings(postings, PostingsEnum.NONE);
+						for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+							if (liveDocs == null || liveDocs.get(doc)) {
+								docIds.put(e.getValue(), leaf.docBase + doc);
+								break;
+							}
+						}
+					}
+				}
+				for (long id : ids) {
+					Integer docId = docIds.get(id);
+					if (docId != null && !documents.containsKey(id)) {
+						documents.put(id, loadDocument(searcher, docId, fieldsToLoad));
+					}
+				}
+			} finally {
+				// 无论发生什么错误都须归还搜索器，旧的IndexReader在最后一个使用者归还后才关闭
+				searcherManager.release(searcher);
 			}
-			doc = searcher.doc(docs.scoreDocs[0].doc);
 		} catch (IOException e) {
 			LOG.error("Lucene Searcher throw the Exception", e);
-		} finally {
-			synchronized (this) {
-				// 无论发送什么错误也必须复原queryCount状态，并通知等待中的线程
-				queryCount--;
-				notifyAll();
-			}
 		}
-		return doc;
+		metrics.searched("readAll", start, documents.size());
+		return documents;
 	}
 	
 	/**
@@ -242,25 +636,20 @@ public class LuceneFacade implements AutoCloseable {
 	public Document first(String fieldName, String value) {
 		Document doc = null;
 		try {
-			// 若正在执行refreshIndexReader中，那么就在此处等待
-			// 同一时间也只能由一个查询线程修改queryCount
-			synchronized (this) {
-				queryCount++;
-			}
-			Query query = new TermQuery(new Term(fieldName, value));
-			TopDocs docs = searcher.search(query, 1);
-			if (docs.scoreDocs.length == 0) {
-				return null;
+			IndexSearcher searcher = searcherManager.acquire();
+			try {
+				Query query = new TermQuery(new Term(fieldName, value));
+				TopDocs docs = searcher.search(query, 1);
+				if (docs.scoreDocs.length == 0) {
+					return null;
+				}
+				doc = searcher.doc(docs.scoreDocs[0].doc);
+			} finally {
+				// 无论发生什么错误都须归还搜索器，旧的IndexReader在最后一个使用者归还后才关闭
+				searcherManager.release(searcher);
 			}
-			doc = searcher.doc(docs.scoreDocs[0].doc);
 		} catch (IOException e) {
 			LOG.error("Lucene Searcher throw the Exception", e);
-		} finally {
-			synchronized (this) {
-				// 无论发送什么错误也必须复原queryCount状态，并通知等待中的线程
-				queryCount--;
-				notifyAll();
-			}
 		}
 		return doc;
 	}
@@ -274,22 +663,27 @@ public class LuceneFacade implements AutoCloseable {
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	public long update(long id, Document document) throws IOException {
-		long newId = idCreator.nextId();
-		document.add(new LongField(ID_NAME, newId, Store.YES));
-		document.add(new LongField(CREATION_TIME, System.currentTimeMillis(), Store.YES));
+		return update(id, document, idCreator.nextId());
+	}
+	
+	/**
+	 * 以外部生成的新id更新索引
+	 * @param id 原文档的id
+	 * @param document 更新的文档
+	 * @param newId 新文档的id
+	 * @return 新文档的id
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	long update(long id, Document document, long newId) throws IOException {
+		addSystemFields(document, newId);
 		for (IndexableField field : document.getFields()) {
-			indexableFieldNames.add(field.name());
+			registerField(field.name());
 			if (LOG.isTraceEnabled() && field.fieldType().tokenized()) {
 				inspectToken(field.name(), field.stringValue());
 			}
 		}
-//		ByteBuffer byteBuffer = ByteBuffer.allocate(8);
-//		BytesRef bytesRef = new BytesRef(byteBuffer.putLong(0, id).array());
-		BytesRefBuilder brb = new BytesRefBuilder();
-		NumericUtils.longToPrefixCoded(id, 0, brb);
-		writer.updateDocument(new Term(ID_NAME, brb.get()), document);
-		writer.commit();
-		refreshIndexReader();
+		metrics.indexed(1);
+		afterWrite(tracker.updateDocument(new Term(ID_NAME, idTerm(id)), document), 1);
 		return newId;
 	}
 
@@ -300,111 +694,664 @@ public class LuceneFacade implements AutoCloseable {
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	public void delete(long id) throws IOException {
-		Query query = NumericRangeQuery.newLongRange(ID_NAME, id, id, true, true);
-		writer.deleteDocuments(query);
-		writer.commit();
-		refreshIndexReader();
+		afterWrite(tracker.deleteDocuments(new Term(ID_NAME, idTerm(id))), 1);
 	}
 	
 	/**
-	 * 当索引变更时，为保持查询有效，需更新IndexReader
+	 * 记录文档中的域名，出现新的域名时重建查询时使用的域名快照
+	 * 
+	 * @param name 域名
+	 */
+	void registerField(String name) {
+		if (indexableFieldNames.add(name)) {
+			// 加锁保证最后发布的快照包含此前加入的所有域名
+			synchronized (indexableFieldNames) {
+				fieldNames = indexableFieldNames.toArray(new String[0]);
+				fieldsVersion++;
+			}
+		}
+	}
+
+	/**
+	 * 在所有已知的域中解析查询字符串，相同的查询字符串在域名集合不变时直接取缓存的结果
+	 * 
+	 * @param queryString 查询字符串
+	 * @return 解析后的查询，不要修改它，它可能被其他线程共享
+	 * @throws ParseException 查询字符串语法错误
+	 */
+	Query parse(String queryString) throws ParseException {
+		int version = fieldsVersion;
+		LruCache<List<Object>, Query> cache = queryCache;
+		List<Object> key = null;
+		if (cache != null) {
+			key = Arrays.asList(version, queryString);
+			Query query = cache.get(key);
+			if (query != null) {
+				return query;
+			}
+		}
+		VersionedParser parser = parsers.get();
+		if (parser == null || parser.version != version) {
+			parser = new VersionedParser(version, new MultiFieldQueryParser(fieldNames, analyzer));
+			parsers.set(parser);
+		}
+		Query query = parser.parser.parse(queryString);
+		if (cache != null) {
+			cache.put(key, query);
+		}
+		return query;
+	}
+
+	/**
+	 * @param queryCacheSize 缓存解析后查询的数量，不大于0时不缓存
+	 */
+	public void setQueryCacheSize(int queryCacheSize) {
+		this.queryCache = queryCacheSize > 0 ? new LruCache<List<Object>, Query>(queryCacheSize) : null;
+	}
+
+	/**
+	 * 开启或关闭搜索结果缓存，缓存只在当前的IndexReader上有效，索引变更并刷新后自动清空。
+	 * 缓存的是本页命中的文档编号和评分，命中缓存时省去搜索，文档仍按编号重新加载，每次返回的都是新的文档。
+	 * 适合读多写少、热点查询集中的索引
+	 * 
+	 * @param maxEntries 最多缓存的结果数，不大于0时关闭缓存
+	 * @param maxBytes 缓存结果估算占用字节数的上限
+	 */
+	public void setResultCache(int maxEntries, long maxBytes) {
+		this.resultCache = maxEntries > 0 ? new LruCache<List<Object>, TopDocs>(maxEntries, maxBytes, (k, t) -> estimateBytes(k, t)) : null;
+	}
+
+	/**
+	 * @return 结果缓存的命中次数，未开启时为0
+	 */
+	public long getResultCacheHits() {
+		LruCache<List<Object>, TopDocs> cache = resultCache;
+		return cache == null ? 0 : cache.getHits();
+	}
+
+	/**
+	 * @return 结果缓存的未命中次数，未开启时为0
+	 */
+	public long getResultCacheMisses() {
+		LruCache<List<Object>, TopDocs> cache = resultCache;
+		return cache == null ? 0 : cache.getMisses();
+	}
+
+	/**
+	 * 借出当前的搜索器，须在finally中调用release归还，供分片时在多个索引上保持同一视图
 	 * 
+	 * @return 搜索器
 	 * @throws IOException 来自底层的输入输出异常
 	 */
-	private void refreshIndexReader() throws IOException {
-		synchronized (this) {
+	IndexSearcher acquire() throws IOException {
+		return searcherManager.acquire();
+	}
+
+	/**
+	 * 归还acquire借出的搜索器
+	 * 
+	 * @param searcher 搜索器
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	void release(IndexSearcher searcher) throws IOException {
+		searcherManager.release(searcher);
+	}
+
+	/**
+	 * @return 运行指标，可以编程方式读取
+	 */
+	public LuceneMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * 将运行指标注册到平台的MBeanServer，ObjectName为com.github.emailtohl.pad.lucene:type=LuceneFacade,name=name，
+	 * 关闭时注销
+	 * 
+	 * @param name 区分不同索引的名字
+	 * @throws IllegalStateException 名字不合法或已被注册
+	 */
+	public synchronized void registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("com.github.emailtohl.pad.lucene:type=LuceneFacade,name=" + ObjectName.quote(name));
+			// 先注销之前的名字，以同一名字重新注册时才不会冲突
+			unregisterMBean();
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+			mbeanName = objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 从平台的MBeanServer中注销运行指标
+	 */
+	public synchronized void unregisterMBean() {
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			LOG.catching(e);
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * @return IndexWriter中的文档数，包括还未对搜索可见的
+	 */
+	int numDocs() {
+		return writer.numDocs();
+	}
+
+	/**
+	 * @return 已删除但还未被段合并清除的文档数
+	 */
+	int deletedDocs() {
+		return writer.maxDoc() - writer.numDocs();
+	}
+
+	/**
+	 * @return 当前搜索器中的段数
+	 */
+	int segmentCount() {
+		try {
+			IndexSearcher searcher = searcherManager.acquire();
 			try {
-				// 当有搜索还在进行时，需要等待
-				while (queryCount > 0)
-					wait();
-				
-				IndexReader newReader = DirectoryReader.openIfChanged((DirectoryReader) reader);
-				if (newReader != null && newReader != reader) {
-					reader.close();
-					reader = newReader;
-					searcher = new IndexSearcher(reader);
-				}
-			} catch (InterruptedException e) {
-				LOG.catching(e);
+				return searcher.getIndexReader().leaves().size();
+			} finally {
+				searcherManager.release(searcher);
 			}
+		} catch (IOException e) {
+			LOG.catching(e);
+			return 0;
 		}
 	}
+
+	/**
+	 * @return IndexWriter缓冲占用的内存字节数
+	 */
+	long ramBytesUsed() {
+		return writer.ramBytesUsed();
+	}
+
+	/**
+	 * 粗略估算缓存条目占用的字节数：键中查询的字符串形式与每个命中
+	 */
+	private static long estimateBytes(List<Object> key, TopDocs topDocs) {
+		return 64 + 2L * ((String) key.get(2)).length() + 32L * topDocs.scoreDocs.length;
+	}
+
+	/**
+	 * 某个版本的域名集合对应的查询解析器
+	 */
+	private static class VersionedParser {
+		final int version;
+		final QueryParser parser;
+		VersionedParser(int version, QueryParser parser) {
+			this.version = version;
+			this.parser = parser;
+		}
+	}
+
+	/**
+	 * 为文档添加id和创建时间：
+	 * id存储为long值，另以不分词的词项索引，供精确查找，并写入DocValues；
+	 * 创建时间仍以LongField索引，以便范围查询，同时写入DocValues，供排序使用
+	 * 
+	 * @param document 文档
+	 * @param id 文档的id
+	 */
+	private void addSystemFields(Document document, long id) {
+		long now = System.currentTimeMillis();
+		// 存储域在前，使document.getField(ID_NAME)取到long值
+		document.add(new StoredField(ID_NAME, id));
+		document.add(new StringField(ID_NAME, idTerm(id), Store.NO));
+		document.add(new NumericDocValuesField(ID_NAME, id));
+		document.add(new LongField(CREATION_TIME, now, Store.YES));
+		document.add(new NumericDocValuesField(CREATION_TIME, now));
+	}
+	
+	/**
+	 * @param id 文档的id
+	 * @return id在索引中的词项
+	 */
+	private static String idTerm(long id) {
+		return Long.toString(id);
+	}
+	
+	/**
+	 * 修改索引后，按提交策略决定是否提交，并在需要时等待本次修改对搜索可见
+	 * 
+	 * @param generation 本次修改的代数
+	 * @param docs 本次修改的文档数
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	private void afterWrite(long generation, int docs) throws IOException {
+		int pending = uncommittedDocs.addAndGet(docs);
+		if (commitEveryDocs > 0 && pending >= commitEveryDocs) {
+			commit();
+		}
+		if (waitUntilVisible) {
+			waitForGeneration(generation);
+		}
+	}
+
+	/**
+	 * 将还未提交的修改持久化到索引目录中
+	 * 
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public void commit() throws IOException {
+		if (uncommittedDocs.getAndSet(0) > 0) {
+			long start = System.nanoTime();
+			writer.commit();
+			metrics.committed(start);
+		}
+	}
+
+	/**
+	 * @return 当前修改的代数，可传给waitForGeneration等待此前的修改对搜索可见
+	 */
+	public long getGeneration() {
+		return tracker.getGeneration();
+	}
+
+	/**
+	 * 等待某代修改对搜索可见，后台线程在有等待者时会立即重新打开搜索器
+	 * 
+	 * @param generation 修改的代数
+	 */
+	public void waitForGeneration(long generation) {
+		try {
+			reopenThread.waitForGeneration(generation);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOG.catching(e);
+		}
+	}
+
+	/**
+	 * 设置提交策略，两个条件满足其一即提交；提交即fsync，间隔越大写入吞吐越高，但宕机时丢失的修改越多。
+	 * 默认每次修改都提交。
+	 * 
+	 * @param commitEveryDocs 未提交的修改达到该数量时提交，不大于0时不按数量提交
+	 * @param commitIntervalMillis 定期提交的间隔毫秒数，不大于0时不定期提交
+	 */
+	public synchronized void setCommitPolicy(int commitEveryDocs, long commitIntervalMillis) {
+		this.commitEveryDocs = commitEveryDocs;
+		if (commitTask != null) {
+			commitTask.cancel(false);
+			commitTask = null;
+		}
+		if (commitIntervalMillis > 0) {
+			commitTask = COMMIT_SCHEDULER.scheduleWithFixedDelay(() -> {
+				try {
+					commit();
+				} catch (IOException | RuntimeException e) {
+					LOG.error("Scheduled commit failed", e);
+				}
+			}, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 默认每次修改都等待其对搜索可见后才返回；关闭后修改立即返回，最迟在MAX_STALE_SEC秒后可见，
+	 * 需要读到自己写入的调用方可通过getGeneration和waitForGeneration等待
+	 * 
+	 * @param waitUntilVisible 修改后是否等待其对搜索可见
+	 */
+	public void setWaitUntilVisible(boolean waitUntilVisible) {
+		this.waitUntilVisible = waitUntilVisible;
+	}
 	
 	/**
-	 * 代理原搜索器的搜索方法，对搜索的线程进行统计，以保证搜索器在执行时不被关闭
+	 * 代理原搜索器的搜索方法，搜索期间持有搜索器的引用，以保证搜索器在执行时不被关闭
 	 * @param query 结构化的查询参数
 	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
 	 * @throws IOException BooleanQuery.TooManyClauses If a query would exceed 
      *         {@link BooleanQuery#getMaxClauseCount()} clauses.
 	 */
 	public Result search(Query query) throws IOException {
+		return search(query, (Set<String>) null);
+	}
+	
+	/**
+	 * 查询前TOP_HITS个文档，只加载指定的存储域。
+	 * 存储域是按块压缩的，加载文档时需解压，只需少数几个域时可避免构造其余的域
+	 * @param query 结构化的查询参数
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public Result search(Query query, Set<String> fieldsToLoad) throws IOException {
+		return search(query, 0, DEFAULT_TOP_HITS, null, fieldsToLoad);
+	}
+	
+	/**
+	 * 分段查询
+	 * 代理原搜索器的搜索方法，搜索期间持有搜索器的引用，以保证搜索器在执行时不被关闭
+	 * @param query 结构化的查询参数
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 * @throws IOException BooleanQuery.TooManyClauses If a query would exceed 
+     *         {@link BooleanQuery#getMaxClauseCount()} clauses.
+	 */
+	public Result search(Query query, int offset, int size) throws IOException {
+		return search(query, offset, size, null);
+	}
+	
+	/**
+	 * 排序的分段查询，只收集前offset + size个命中，且只加载本页文档的存储域。
+	 * 排序域须有DocValues，如CREATION_TIME，排序时直接读取列式存储的值，不必加载每个命中文档的存储域。
+	 * 
+	 * @param query 结构化的查询参数
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @param sort 排序方式，如NEWEST_FIRST，为null时按相关度排序
+	 * @return 搜索结果，包括总数量，最大评分（按域排序时为NaN）以及Lucene文档集合
+	 * @throws IOException 来自底层的输入输出异常
+	 * @throws IllegalArgumentException offset为负数或size不为正数
+	 */
+	public Result search(Query query, int offset, int size, Sort sort) throws IOException {
+		return search(query, offset, size, sort, null);
+	}
+	
+	/**
+	 * 排序的分段查询，只加载本页文档中指定的存储域。
+	 * 开启结果缓存后，同一IndexReader上相同的查询直接返回缓存的结果
+	 * 
+	 * @param query 结构化的查询参数
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @param sort 排序方式，为null时按相关度排序
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 * @throws IOException 来自底层的输入输出异常
+	 * @throws IllegalArgumentException offset为负数或size不为正数
+	 */
+	public Result search(Query query, int offset, int size, Sort sort, Set<String> fieldsToLoad) throws IOException {
+		if (offset < 0 || size <= 0) {
+			throw new IllegalArgumentException("offset must not be negative and size must be positive");
+		}
+		long start = System.nanoTime();
+		// 防止offset + size溢出
+		int numHits = (int) Math.min(Integer.MAX_VALUE, (long) offset + size);
+		IndexSearcher searcher = searcherManager.acquire();
 		try {
-			// 若正在执行refreshIndexReader中，那么就在此处等待
-			// 同一时间也只能由一个查询线程修改queryCount
-			synchronized (this) {
-				queryCount++;
+			LruCache<List<Object>, TopDocs> cache = resultCache;
+			List<Object> key = null;
+			TopDocs page = null;
+			if (cache != null) {
+				// 键中含有IndexReader的版本，索引变更后旧的结果不会再被命中；
+				// 查询可被调用方修改（如setBoost），键中不保存查询本身，而保存它的类型和字符串形式
+				key = Arrays.asList(((DirectoryReader) searcher.getIndexReader()).getVersion(), query.getClass(),
+						query.toString(), offset, size, sort, fieldsToLoad == null ? null : new HashSet<String>(fieldsToLoad));
+				page = cache.get(key);
+			}
+			if (page == null) {
+				TopDocs topDocs = sort == null ? searcher.search(query, numHits) : searcher.search(query, numHits, sort);
+				// scoreDocs的长度不超过命中数，也不超过numHits
+				ScoreDoc[] scoreDocs = topDocs.scoreDocs.length > offset
+						? Arrays.copyOfRange(topDocs.scoreDocs, offset, topDocs.scoreDocs.length)
+						: new ScoreDoc[0];
+				page = new TopDocs(topDocs.totalHits, scoreDocs, topDocs.getMaxScore());
+				if (cache != null) {
+					cache.put(key, page);
+				}
+			}
+			Result result = new Result(page);
+			for (ScoreDoc sd : page.scoreDocs) {
+				result.documents.add(loadDocument(searcher, sd.doc, fieldsToLoad));
 			}
-			TopDocs topDocs = searcher.search(query, DEFAULT_TOP_HITS);
+			metrics.searched("search", start, result.totalHits);
+			return result;
+		} finally {
+			// 无论发生什么错误都须归还搜索器，旧的IndexReader在最后一个使用者归还后才关闭
+			searcherManager.release(searcher);
+		}
+	}
+	
+	/**
+	 * 排序的分段查询，文档只由DocValues中的值构成，完全不读取存储域。
+	 * 支持NUMERIC、SORTED、BINARY类型的DocValues，如ID_NAME、CREATION_TIME，
+	 * 数值以long形式放入文档，其余以字符串形式放入，文档中没有值的域会被略过
+	 * 
+	 * @param query 结构化的查询参数
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @param sort 排序方式，为null时按相关度排序
+	 * @param fields 要读取的DocValues域
+	 * @return 搜索结果，documents中只包含fields中有值的域
+	 * @throws IOException 来自底层的输入输出异常
+	 * @throws IllegalArgumentException offset为负数或size不为正数
+	 */
+	public Result searchDocValues(Query query, int offset, int size, Sort sort, String... fields) throws IOException {
+		if (offset < 0 || size <= 0) {
+			throw new IllegalArgumentException("offset must not be negative and size must be positive");
+		}
+		long start = System.nanoTime();
+		int numHits = (int) Math.min(Integer.MAX_VALUE, (long) offset + size);
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
+			TopDocs topDocs = sort == null ? searcher.search(query, numHits) : searcher.search(query, numHits, sort);
 			Result result = new Result(topDocs);
-			for (ScoreDoc sd : topDocs.scoreDocs) {
-				Document doc = searcher.doc(sd.doc);
-				result.documents.add(doc);
+			List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+			for (int i = offset; i < topDocs.scoreDocs.length; i++) {
+				int docId = topDocs.scoreDocs[i].doc;
+				LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+				result.documents.add(docValues(leaf.reader(), docId - leaf.docBase, fields));
 			}
+			metrics.searched("searchDocValues", start, result.totalHits);
 			return result;
 		} finally {
-			synchronized (this) {
-				// 无论发送什么错误也必须复原queryCount状态，并通知等待中的线程
-				queryCount--;
-				notifyAll();
+			// 无论发生什么错误都须归还搜索器，旧的IndexReader在最后一个使用者归还后才关闭
+			searcherManager.release(searcher);
+		}
+	}
+	
+	/**
+	 * 读取段内某文档的DocValues
+	 * 
+	 * @param reader 段的reader
+	 * @param doc 段内的文档号
+	 * @param fields 要读取的DocValues域
+	 * @return 只包含有值的域的文档
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	private Document docValues(LeafReader reader, int doc, String... fields) throws IOException {
+		Document document = new Document();
+		for (String field : fields) {
+			FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+			if (info == null) {
+				continue;
+			}
+			Bits docsWithField = reader.getDocsWithField(field);
+			if (docsWithField == null || !docsWithField.get(doc)) {
+				continue;
+			}
+			switch (info.getDocValuesType()) {
+			case NUMERIC:
+				document.add(new StoredField(field, reader.getNumericDocValues(field).get(doc)));
+				break;
+			case SORTED:
+				document.add(new StoredField(field, reader.getSortedDocValues(field).get(doc).utf8ToString()));
+				break;
+			case BINARY:
+				document.add(new StoredField(field, reader.getBinaryDocValues(field).get(doc).utf8ToString()));
+				break;
+			default:
+				break;
 			}
 		}
+		return document;
 	}
 	
 	/**
-	 * 分段查询
-	 * 代理原搜索器的搜索方法，对搜索的线程进行统计，以保证搜索器在执行时不被关闭
+	 * 加载文档的存储域
+	 * 
+	 * @param searcher 搜索器
+	 * @param docId 文档号
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @return 文档
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	private Document loadDocument(IndexSearcher searcher, int docId, Set<String> fieldsToLoad) throws IOException {
+		return fieldsToLoad == null ? searcher.doc(docId) : searcher.doc(docId, fieldsToLoad);
+	}
+	
+	/**
+	 * 分段查询，并为每个文档返回各域中与查询匹配的高亮片段。
+	 * 高亮直接读取索引中的词向量，不会重新分词整个域的文本，所以需要高亮的域应存储原文，并开启带位置和偏移量的词向量，如：
+	 * <pre>
+	 * FieldType type = new FieldType(TextField.TYPE_STORED);
+	 * type.setStoreTermVectors(true);
+	 * type.setStoreTermVectorPositions(true);
+	 * type.setStoreTermVectorOffsets(true);
+	 * </pre>
+	 * 没有词向量的域不会出现在高亮结果中
+	 * 
 	 * @param query 结构化的查询参数
-	 * @param offset 数量
+	 * @param offset 起始序号
 	 * @param size 每页大小
-	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
-	 * @throws IOException BooleanQuery.TooManyClauses If a query would exceed 
-     *         {@link BooleanQuery#getMaxClauseCount()} clauses.
+	 * @return 搜索结果，fragments与documents一一对应
+	 * @throws IOException 来自底层的输入输出异常
+	 * @throws IllegalArgumentException offset为负数或size不为正数
 	 */
-	public Result search(Query query, int offset, int size) throws IOException {
+	public Result searchWithHighlight(Query query, int offset, int size) throws IOException {
+		if (offset < 0 || size <= 0) {
+			throw new IllegalArgumentException("offset must not be negative and size must be positive");
+		}
+		long start = System.nanoTime();
+		IndexSearcher searcher = searcherManager.acquire();
 		try {
-			// 若正在执行refreshIndexReader中，那么就在此处等待
-			// 同一时间也只能由一个查询线程修改queryCount
-			synchronized (this) {
-				queryCount++;
-			}
-			int end = offset + size;
-			TopDocs topDocs = searcher.search(query, DEFAULT_TOP_HITS);
+			TopDocs topDocs = searcher.search(query, Math.max(1, offset + size));
 			Result result = new Result(topDocs);
-			for (int i = offset; i < end && i < topDocs.totalHits; i++) {
-				ScoreDoc sd = topDocs.scoreDocs[i];
-				Document doc = searcher.doc(sd.doc);
-				result.documents.add(doc);
+			FastVectorHighlighter highlighter = new FastVectorHighlighter();
+			IndexReader reader = searcher.getIndexReader();
+			FieldQuery fieldQuery = highlighter.getFieldQuery(query, reader);
+			int fragSize = fragmentSize, fragCount = maxFragments;
+			for (int i = offset; i < topDocs.scoreDocs.length; i++) {
+				int docId = topDocs.scoreDocs[i].doc;
+				result.documents.add(searcher.doc(docId));
+				Map<String, String[]> fragments = new LinkedHashMap<String, String[]>();
+				for (String field : indexableFieldNames) {
+					String[] frags = highlighter.getBestFragments(fieldQuery, reader, docId, field, fragSize, fragCount);
+					if (frags != null && frags.length > 0) {
+						fragments.put(field, frags);
+					}
+				}
+				result.fragments.add(fragments);
 			}
+			metrics.searched("searchWithHighlight", start, result.totalHits);
 			return result;
 		} finally {
-			synchronized (this) {
-				// 无论发送什么错误也必须复原queryCount状态，并通知等待中的线程
-				queryCount--;
-				notifyAll();
+			// 无论发生什么错误都须归还搜索器，旧的IndexReader在最后一个使用者归还后才关闭
+			searcherManager.release(searcher);
+		}
+	}
+
+	/**
+	 * 分段查询，并为每个文档返回各域中与查询匹配的高亮片段
+	 * 
+	 * @param queryString 查询字符串
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @return 搜索结果，fragments与documents一一对应
+	 * @throws IllegalArgumentException offset为负数或size不为正数
+	 */
+	public Result searchWithHighlight(String queryString, int offset, int size) {
+		try {
+			Query query = parse(queryString);
+			return searchWithHighlight(query, offset, size);
+		} catch (IOException e) {
+			LOG.error("Lucene Searcher throw the Exception", e);
+			return new Result(null);
+		} catch (ParseException e) {
+			LOG.error("Query statement parsing failed", e);
+			return new Result(null);
+		}
+	}
+
+	/**
+	 * @param fragmentSize 高亮片段的字符数，不能小于18
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		if (fragmentSize < 18) {
+			throw new IllegalArgumentException("fragmentSize must be at least 18");
+		}
+		this.fragmentSize = fragmentSize;
+	}
+
+	/**
+	 * @param maxFragments 每个域最多返回的高亮片段数
+	 */
+	public void setMaxFragments(int maxFragments) {
+		this.maxFragments = maxFragments;
+	}
+
+	/**
+	 * 基于游标的分段查询，只收集after之后的size个文档，深度翻页时开销不会随页码增长
+	 * 
+	 * @param query 结构化的查询参数
+	 * @param after 上一页返回的Result#after，为null时从第一页开始
+	 * @param size 每页大小
+	 * @return 搜索结果，after为获取下一页的游标，没有下一页时为null
+	 * @throws IOException 来自底层的输入输出异常
+	 * @throws IllegalArgumentException 游标格式不正确
+	 */
+	public Result searchAfter(Query query, String after, int size) throws IOException {
+		ScoreDoc last = SearchCursor.decode(after);
+		long start = System.nanoTime();
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
+			TopDocs topDocs = searcher.searchAfter(last, query, size);
+			ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+			String next = scoreDocs.length < size ? null : SearchCursor.encode(scoreDocs[scoreDocs.length - 1]);
+			Result result = new Result(topDocs, next);
+			for (ScoreDoc sd : scoreDocs) {
+				result.documents.add(searcher.doc(sd.doc));
 			}
+			metrics.searched("searchAfter", start, result.totalHits);
+			return result;
+		} finally {
+			// 无论发生什么错误都须归还搜索器，旧的IndexReader在最后一个使用者归还后才关闭
+			searcherManager.release(searcher);
 		}
 	}
-	
+
+	/**
+	 * 基于游标的分段查询
+	 * 
+	 * @param queryString 查询字符串
+	 * @param after 上一页返回的Result#after，为null时从第一页开始
+	 * @param size 每页大小
+	 * @return 搜索结果，after为获取下一页的游标，没有下一页时为null
+	 * @throws IllegalArgumentException 游标格式不正确
+	 */
+	public Result searchAfter(String queryString, String after, int size) {
+		try {
+			Query query = parse(queryString);
+			return searchAfter(query, after, size);
+		} catch (IOException e) {
+			LOG.error("Lucene Searcher throw the Exception", e);
+			return new Result(null);
+		} catch (ParseException e) {
+			LOG.error("Query statement parsing failed", e);
+			return new Result(null);
+		}
+	}
+
 	/**
 	 * 查询出Lucene原始的Document对象
 	 * @param queryString 查询字符串
 	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
 	 */
 	public Result search(String queryString) {
-		String[] fields = new String[indexableFieldNames.size()];
-		QueryParser queryParser = new MultiFieldQueryParser(indexableFieldNames.toArray(fields), analyzer);
 		try {
-			Query query = queryParser.parse(queryString);
+			Query query = parse(queryString);
 			return search(query);
 		} catch (IOException e) {
 			LOG.error("Lucene Searcher throw the Exception", e);
@@ -424,11 +1371,22 @@ public class LuceneFacade implements AutoCloseable {
 	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
 	 */
 	public Result search(String queryString, int offset, int size) {
-		String[] fields = new String[indexableFieldNames.size()];
-		QueryParser queryParser = new MultiFieldQueryParser(indexableFieldNames.toArray(fields), analyzer);
+		return search(queryString, offset, size, null);
+	}
+	
+	/**
+	 * 排序的分段查询出Lucene原始的Document对象
+	 * 
+	 * @param queryString 查询字符串
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @param sort 排序方式，为null时按相关度排序
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 */
+	public Result search(String queryString, int offset, int size, Sort sort) {
 		try {
-			Query query = queryParser.parse(queryString);
-			return search(query, offset, size);
+			Query query = parse(queryString);
+			return search(query, offset, size, sort);
 		} catch (IOException e) {
 			LOG.error("Lucene Searcher throw the Exception", e);
 			return new Result(null);
@@ -445,9 +1403,16 @@ public class LuceneFacade implements AutoCloseable {
 	 */
 	public static class Result {
 		public final List<Document> documents = new ArrayList<Document>();
+		/** 高亮查询时，每个文档中以域名为键的高亮片段，与documents一一对应 */
+		public final List<Map<String, String[]>> fragments = new ArrayList<Map<String, String[]>>();
 		public final int totalHits;
 		public final float maxScore;
+		/** 游标查询时获取下一页的游标，没有下一页时为null */
+		public final String after;
 		public Result(TopDocs topDocs) {
+			this(topDocs, null);
+		}
+		public Result(TopDocs topDocs, String after) {
 			if (topDocs == null) {
 				this.totalHits = 0;
 				this.maxScore = 0;
@@ -455,37 +1420,61 @@ public class LuceneFacade implements AutoCloseable {
 				this.totalHits = topDocs.totalHits;
 				this.maxScore = topDocs.getMaxScore();
 			}
+			this.after = after;
+		}
+	}
+	
+	/**
+	 * 批量索引的统计
+	 * 
+	 * @author HeLei
+	 */
+	public static class BulkResult {
+		/** 添加的文档数 */
+		public final int documents;
+		/** 包括提交在内的耗时毫秒数 */
+		public final long elapsedMillis;
+		public BulkResult(int documents, long elapsedMillis) {
+			this.documents = documents;
+			this.elapsedMillis = elapsedMillis;
+		}
+		/**
+		 * @return 每秒索引的文档数
+		 */
+		public double getDocsPerSecond() {
+			return elapsedMillis == 0 ? documents * 1000.0 : documents * 1000.0 / elapsedMillis;
+		}
+		@Override
+		public String toString() {
+			return String.format("bulk indexed %d documents in %d ms (%.1f docs/s)", documents, elapsedMillis, getDocsPerSecond());
 		}
 	}
 	
 	/**
-	 * 关闭所有资源
+	 * 停止后台线程，提交未提交的修改并关闭所有资源。必须调用，不会由垃圾回收代为关闭
 	 * 
 	 * @throws IOException 来自底层的输入输出异常
 	 */
 	@Override
 	public void close() throws IOException {
-		// 当修改索引还在进行时，需要等待
 		synchronized (this) {
-			try {
-				// 当有搜索还在进行时，需要等待
-				while (queryCount > 0)
-					wait();
-
-				reader.close();
-				if (writer.isOpen())
-					writer.close();
-				analyzer.close();
-			} catch (InterruptedException e) {
-				LOG.catching(e);
+			if (commitTask != null) {
+				commitTask.cancel(false);
+				commitTask = null;
 			}
+			unregisterMBean();
 		}
-	}
-	
-	@Override
-	protected void finalize() throws Throwable {
-		super.finalize();
-		close();
+		reopenThread.close();
+		// 正在使用的IndexReader在归还后才会关闭
+		searcherManager.close();
+		// 关闭时会提交未提交的修改
+		if (writer.isOpen())
+			writer.close();
+		analyzer.close();
+		if (ownedDirectory != null) {
+			ownedDirectory.close();
+		}
+		deleteTemporaryPath(temporaryPath);
 	}
 	
 	/**
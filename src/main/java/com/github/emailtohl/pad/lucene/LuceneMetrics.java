@@ -0,0 +1,303 @@
+package com.github.emailtohl.pad.lucene;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * LuceneFacade的运行指标：搜索耗时、命中数、刷新和提交耗时、索引速度，以及段数、内存等索引状态。
+ * 可通过LuceneFacade#getMetrics以编程方式读取，也可通过LuceneFacade#registerMBean注册到JMX。
+ * ShardedLuceneFacade的指标汇总各分片的索引状态
+ *
+ * @author HeLei
+ */
+public class LuceneMetrics implements LuceneMetricsMXBean {
+	/** 索引状态类的指标是这些LuceneFacade之和 */
+	private final LuceneFacade[] facades;
+	/** 以搜索方法名为键的耗时直方图 */
+	private final ConcurrentHashMap<String, Histogram> searchLatency = new ConcurrentHashMap<String, Histogram>();
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final Histogram refreshLatency = new Histogram();
+	private final Histogram commitLatency = new Histogram();
+	private final AtomicLong indexedDocs = new AtomicLong();
+	private volatile long lastCommitTime;
+	/** 开始统计的时间 */
+	private volatile long since = System.nanoTime();
+	/** 刷新由SearcherManager的锁串行执行，记录开始时间即可 */
+	private volatile long refreshStart;
+
+	LuceneMetrics(LuceneFacade... facades) {
+		this.facades = facades;
+	}
+
+	void searched(String method, long startNanos, int totalHits) {
+		searchLatency.computeIfAbsent(method, m -> new Histogram()).record(System.nanoTime() - startNanos);
+		queries.incrementAndGet();
+		hits.addAndGet(totalHits);
+	}
+
+	void beforeRefresh() {
+		refreshStart = System.nanoTime();
+	}
+
+	void afterRefresh(boolean didRefresh) {
+		if (didRefresh) {
+			refreshLatency.record(System.nanoTime() - refreshStart);
+		}
+	}
+
+	void committed(long startNanos) {
+		commitLatency.record(System.nanoTime() - startNanos);
+		lastCommitTime = System.currentTimeMillis();
+	}
+
+	void indexed(int docs) {
+		indexedDocs.addAndGet(docs);
+	}
+
+	/**
+	 * @param method 搜索方法名，如search、searchAfter、searchWithHighlight、searchDocValues、readAll
+	 * @return 该方法的耗时直方图，还未调用过时返回null
+	 */
+	public Histogram getSearchLatency(String method) {
+		return searchLatency.get(method);
+	}
+
+	public Histogram getRefreshLatency() {
+		return refreshLatency;
+	}
+
+	public Histogram getCommitLatency() {
+		return commitLatency;
+	}
+
+	@Override
+	public Map<String, Long> getSearchCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		searchLatency.forEach((method, h) -> counts.put(method, h.getCount()));
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getSearchMeanMillis() {
+		return bySearchMethod(Histogram::getMeanMillis);
+	}
+
+	@Override
+	public Map<String, Double> getSearchP99Millis() {
+		return bySearchMethod(h -> h.getPercentileMillis(0.99));
+	}
+
+	@Override
+	public Map<String, Double> getSearchMaxMillis() {
+		return bySearchMethod(Histogram::getMaxMillis);
+	}
+
+	private Map<String, Double> bySearchMethod(ToDoubleFunction<Histogram> f) {
+		Map<String, Double> values = new TreeMap<String, Double>();
+		searchLatency.forEach((method, h) -> values.put(method, f.applyAsDouble(h)));
+		return values;
+	}
+
+	@Override
+	public double getMeanHitsPerQuery() {
+		long q = queries.get();
+		return q == 0 ? 0 : (double) hits.get() / q;
+	}
+
+	@Override
+	public long getRefreshCount() {
+		return refreshLatency.getCount();
+	}
+
+	@Override
+	public double getRefreshMeanMillis() {
+		return refreshLatency.getMeanMillis();
+	}
+
+	@Override
+	public double getRefreshMaxMillis() {
+		return refreshLatency.getMaxMillis();
+	}
+
+	@Override
+	public long getCommitCount() {
+		return commitLatency.getCount();
+	}
+
+	@Override
+	public double getCommitMeanMillis() {
+		return commitLatency.getMeanMillis();
+	}
+
+	@Override
+	public double getCommitMaxMillis() {
+		return commitLatency.getMaxMillis();
+	}
+
+	@Override
+	public double getCommitsPerMinute() {
+		return commitLatency.getCount() / Math.max(elapsedSeconds(), 1e-3) * 60;
+	}
+
+	@Override
+	public long getLastCommitTime() {
+		return lastCommitTime;
+	}
+
+	@Override
+	public long getIndexedDocs() {
+		return indexedDocs.get();
+	}
+
+	@Override
+	public double getIndexedDocsPerSecond() {
+		return indexedDocs.get() / Math.max(elapsedSeconds(), 1e-3);
+	}
+
+	private double elapsedSeconds() {
+		return (System.nanoTime() - since) / 1e9;
+	}
+
+	@Override
+	public int getNumDocs() {
+		return (int) sum(LuceneFacade::numDocs);
+	}
+
+	@Override
+	public int getDeletedDocs() {
+		return (int) sum(LuceneFacade::deletedDocs);
+	}
+
+	@Override
+	public int getSegmentCount() {
+		return (int) sum(LuceneFacade::segmentCount);
+	}
+
+	@Override
+	public long getRamBytesUsed() {
+		return sum(LuceneFacade::ramBytesUsed);
+	}
+
+	@Override
+	public long getResultCacheHits() {
+		return sum(LuceneFacade::getResultCacheHits);
+	}
+
+	@Override
+	public long getResultCacheMisses() {
+		return sum(LuceneFacade::getResultCacheMisses);
+	}
+
+	private long sum(ToLongFunction<LuceneFacade> f) {
+		long sum = 0;
+		for (LuceneFacade facade : facades) {
+			sum += f.applyAsLong(facade);
+		}
+		return sum;
+	}
+
+	@Override
+	public void reset() {
+		searchLatency.clear();
+		queries.set(0);
+		hits.set(0);
+		refreshLatency.reset();
+		commitLatency.reset();
+		indexedDocs.set(0);
+		since = System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("searches: %s, refreshes: %d, commits: %d, indexed: %d docs (%.1f docs/s), segments: %d",
+				getSearchCounts(), getRefreshCount(), getCommitCount(), getIndexedDocs(), getIndexedDocsPerSecond(),
+				getSegmentCount());
+	}
+
+	/**
+	 * 按固定的桶统计耗时的直方图，分位数取所在桶的上界，无锁，可并发记录
+	 *
+	 * @author HeLei
+	 */
+	public static class Histogram {
+		/** 各桶的上界（微秒），最后还有一个不设上界的桶 */
+		private static final long[] BOUNDS_MICROS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000,
+				250000, 500000, 1000000, 2500000, 5000000, 10000000 };
+		private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MICROS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			int i = 0;
+			while (i < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[i]) {
+				i++;
+			}
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		void reset() {
+			for (int i = 0; i < buckets.length(); i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			totalNanos.set(0);
+			maxNanos.set(0);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public double getMeanMillis() {
+			long c = count.get();
+			return c == 0 ? 0 : totalNanos.get() / 1e6 / c;
+		}
+
+		public double getMaxMillis() {
+			return maxNanos.get() / 1e6;
+		}
+
+		/**
+		 * @param percentile 0到1之间的分位，如0.99
+		 * @return 该分位所在桶的上界，落在最后一个桶时返回最大值
+		 */
+		public double getPercentileMillis(double percentile) {
+			long c = count.get();
+			if (c == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(percentile * c), seen = 0;
+			for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(BOUNDS_MICROS[i] / 1e3, getMaxMillis());
+				}
+			}
+			return getMaxMillis();
+		}
+
+		/**
+		 * @return 以桶的上界（毫秒）为键的计数，最后一个桶的键为Double.POSITIVE_INFINITY
+		 */
+		public Map<Double, Long> getBuckets() {
+			Map<Double, Long> snapshot = new TreeMap<Double, Long>();
+			for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+				snapshot.put(BOUNDS_MICROS[i] / 1e3, buckets.get(i));
+			}
+			snapshot.put(Double.POSITIVE_INFINITY, buckets.get(BOUNDS_MICROS.length));
+			return snapshot;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.github.emailtohl.pad.lucene;
+
+import java.util.Map;
+
+/**
+ * LuceneFacade运行指标的JMX接口，时间单位均为毫秒
+ *
+ * @author HeLei
+ */
+public interface LuceneMetricsMXBean {
+
+	/**
+	 * @return 各搜索方法的调用次数
+	 */
+	Map<String, Long> getSearchCounts();
+
+	/**
+	 * @return 各搜索方法的平均耗时
+	 */
+	Map<String, Double> getSearchMeanMillis();
+
+	/**
+	 * @return 各搜索方法耗时的99分位数，按直方图的桶估算
+	 */
+	Map<String, Double> getSearchP99Millis();
+
+	/**
+	 * @return 各搜索方法的最大耗时
+	 */
+	Map<String, Double> getSearchMaxMillis();
+
+	/**
+	 * @return 平均每次搜索的命中数
+	 */
+	double getMeanHitsPerQuery();
+
+	long getRefreshCount();
+
+	double getRefreshMeanMillis();
+
+	double getRefreshMaxMillis();
+
+	long getCommitCount();
+
+	double getCommitMeanMillis();
+
+	double getCommitMaxMillis();
+
+	/**
+	 * @return 自开始统计以来平均每分钟提交的次数
+	 */
+	double getCommitsPerMinute();
+
+	/**
+	 * @return 最近一次提交的时间戳，还未提交时为0
+	 */
+	long getLastCommitTime();
+
+	/**
+	 * @return 自开始统计以来添加进索引的文档数
+	 */
+	long getIndexedDocs();
+
+	/**
+	 * @return 自开始统计以来平均每秒添加进索引的文档数
+	 */
+	double getIndexedDocsPerSecond();
+
+	int getNumDocs();
+
+	/**
+	 * @return 已删除但还未被段合并清除的文档数
+	 */
+	int getDeletedDocs();
+
+	/**
+	 * @return 当前搜索器中的段数
+	 */
+	int getSegmentCount();
+
+	/**
+	 * @return IndexWriter缓冲占用的内存字节数
+	 */
+	long getRamBytesUsed();
+
+	long getResultCacheHits();
+
+	long getResultCacheMisses();
+
+	/**
+	 * 清零统计，不影响索引状态类的指标
+	 */
+	void reset();
+}
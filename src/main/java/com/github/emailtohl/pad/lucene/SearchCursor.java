@@ -0,0 +1,132 @@
+package com.github.emailtohl.pad.lucene;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * 将一页最后一个命中（ScoreDoc或带排序值的FieldDoc）编码为不透明的字符串游标，供下一页的searchAfter使用。
+ * 游标中包含Lucene内部的docId，索引在两次查询之间发生段合并时，翻页结果可能出现少量重复或遗漏。
+ * 
+ * @author HeLei
+ */
+public final class SearchCursor {
+	private static final byte SCORE_DOC = 0, FIELD_DOC = 1;
+	private static final byte NULL = 0, LONG = 1, INT = 2, FLOAT = 3, DOUBLE = 4, STRING = 5, BYTES_REF = 6;
+
+	private SearchCursor() {
+	}
+
+	/**
+	 * @param last 本页最后一个命中，为null时返回null
+	 * @return 游标字符串
+	 */
+	public static String encode(ScoreDoc last) {
+		if (last == null) {
+			return null;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(last instanceof FieldDoc ? FIELD_DOC : SCORE_DOC);
+			out.writeInt(last.doc);
+			out.writeFloat(last.score);
+			out.writeInt(last.shardIndex);
+			if (last instanceof FieldDoc) {
+				Object[] fields = ((FieldDoc) last).fields;
+				out.writeInt(fields.length);
+				for (Object field : fields) {
+					writeValue(out, field);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+	}
+
+	/**
+	 * @param cursor encode得到的游标字符串，为null或空时返回null，表示从第一页开始
+	 * @return 上一页最后一个命中
+	 * @throws IllegalArgumentException 游标格式不正确
+	 */
+	public static ScoreDoc decode(String cursor) {
+		if (cursor == null || cursor.isEmpty()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+			byte type = in.readByte();
+			int doc = in.readInt();
+			float score = in.readFloat();
+			int shardIndex = in.readInt();
+			if (type == SCORE_DOC) {
+				return new ScoreDoc(doc, score, shardIndex);
+			}
+			Object[] fields = new Object[in.readInt()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = readValue(in);
+			}
+			return new FieldDoc(doc, score, fields, shardIndex);
+		} catch (IOException | RuntimeException e) {
+			throw new IllegalArgumentException("Invalid search cursor: " + cursor, e);
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			out.writeUTF((String) value);
+		} else if (value instanceof BytesRef) {
+			BytesRef ref = (BytesRef) value;
+			out.writeByte(BYTES_REF);
+			out.writeInt(ref.length);
+			out.write(ref.bytes, ref.offset, ref.length);
+		} else {
+			throw new IllegalArgumentException("Unsupported sort value type: " + value.getClass());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case LONG:
+			return in.readLong();
+		case INT:
+			return in.readInt();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return in.readUTF();
+		case BYTES_REF:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new BytesRef(bytes);
+		default:
+			throw new IOException("Unknown sort value type: " + type);
+		}
+	}
+}
@@ -0,0 +1,545 @@
+package com.github.emailtohl.pad.lucene;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+
+import com.github.emailtohl.pad.util.SnowFlake;
+
+/**
+ * <p>将文档按id的散列分布到多个LuceneFacade上，每个分片有自己的IndexWriter，写入互不竞争</p>
+ * <p>搜索时在有界的线程池中并行搜索所有分片，再用TopDocs.merge归并，搜索期间持有各分片的搜索器，保证文档号有效</p>
+ * <p>id由本类统一生成，接口与LuceneFacade一致</p>
+ * <p>各分片独立统计词频，按相关度排序时每个分片用自己的IDF打分，分片间文档分布不均时，归并后的排名可能与单个索引不同；
+ * 需要精确的相关度排名时应使用LuceneFacade</p>
+ *
+ * @author HeLei
+ */
+public class ShardedLuceneFacade implements AutoCloseable {
+	/** 日志 */
+	private static final Logger LOG = LogManager.getLogger();
+	/** 用于打散id的乘数，使雪花算法中变化较少的低位也能均匀分布 */
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+	/** 各分片 */
+	private final LuceneFacade[] shards;
+	/** 并行搜索和写入分片的线程池 */
+	private final ExecutorService executor;
+	/** 由本类打开的索引目录，关闭时一并关闭 */
+	private final List<Directory> ownedDirectories;
+	/** 分片级的运行指标，索引状态类的指标是各分片之和 */
+	private final LuceneMetrics metrics;
+	/** id 生成工具，所有分片共用，保证id全局唯一 */
+	public final SnowFlake idCreator = new SnowFlake(new Random().nextInt((int) SnowFlake.MAX_DATACENTER_NUM),
+			new Random().nextInt((int) SnowFlake.MAX_MACHINE_NUM));
+
+	/**
+	 * @param directories 每个分片的索引目录
+	 * @param analyzer 索引和搜索使用的分词器
+	 * @param threads 并行搜索的线程数，不大于0时取分片数与CPU核数中的较小者
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public ShardedLuceneFacade(List<Directory> directories, Analyzer analyzer, int threads) throws IOException {
+		this(directories, analyzer, threads, false);
+	}
+
+	/**
+	 * @param ownDirectories 索引目录是否由本类打开，是则关闭时一并关闭，打开分片失败时也会关闭
+	 */
+	private ShardedLuceneFacade(List<Directory> directories, Analyzer analyzer, int threads, boolean ownDirectories) throws IOException {
+		if (directories.isEmpty()) {
+			throw new IllegalArgumentException("at least one shard is required");
+		}
+		this.ownedDirectories = ownDirectories ? directories : new ArrayList<Directory>();
+		this.shards = new LuceneFacade[directories.size()];
+		for (int i = 0; i < shards.length; i++) {
+			try {
+				shards[i] = new LuceneFacade(directories.get(i), analyzer);
+			} catch (IOException | RuntimeException e) {
+				// 已打开的分片持有IndexWriter的写锁，须关闭后再抛出
+				closeAll(Arrays.asList(shards).subList(0, i), ownedDirectories, e);
+				throw e;
+			}
+		}
+		this.metrics = new LuceneMetrics(shards);
+		int n = threads > 0 ? threads : Math.min(shards.length, Runtime.getRuntime().availableProcessors());
+		this.executor = Executors.newFixedThreadPool(n, r -> {
+			Thread t = new Thread(r, "lucene-shard-search");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * 在indexPath下为每个分片建立shard-序号子目录
+	 *
+	 * @param indexPath 文件系统的索引目录
+	 * @param shardCount 分片数
+	 * @param directoryType 索引目录的实现方式
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public ShardedLuceneFacade(String indexPath, int shardCount, DirectoryType directoryType) throws IOException {
+		this(openShards(Paths.get(indexPath), shardCount, directoryType), new StandardAnalyzer(), 0, true);
+	}
+
+	/**
+	 * 基于内存的分片索引
+	 *
+	 * @param shardCount 分片数
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public ShardedLuceneFacade(int shardCount) throws IOException {
+		this(ramShards(shardCount), new StandardAnalyzer(), 0, true);
+	}
+
+	private static List<Directory> openShards(Path indexPath, int shardCount, DirectoryType directoryType) throws IOException {
+		List<Directory> directories = new ArrayList<Directory>();
+		try {
+			for (int i = 0; i < shardCount; i++) {
+				Path shard = indexPath.resolve("shard-" + i);
+				Files.createDirectories(shard);
+				directories.add(directoryType.open(shard));
+			}
+		} catch (IOException | RuntimeException e) {
+			closeAll(Collections.emptyList(), directories, e);
+			throw e;
+		}
+		return directories;
+	}
+
+	private static List<Directory> ramShards(int shardCount) {
+		List<Directory> directories = new ArrayList<Directory>();
+		for (int i = 0; i < shardCount; i++) {
+			directories.add(new RAMDirectory());
+		}
+		return directories;
+	}
+
+	/**
+	 * @return 分片数
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @param id 文档的id
+	 * @return 文档所在分片的序号
+	 */
+	int shardOf(long id) {
+		return Math.floorMod(Long.hashCode(id * GOLDEN_RATIO), shards.length);
+	}
+
+	/**
+	 * 按id将文档分组后，在各分片上并行添加进索引
+	 *
+	 * @param documents 要添加进索引的文档，执行后，每个Document中会添加id属性
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public void index(List<Document> documents) throws IOException {
+		Map<Integer, List<Document>> docsByShard = new HashMap<Integer, List<Document>>();
+		Map<Integer, List<Long>> idsByShard = new HashMap<Integer, List<Long>>();
+		for (Document doc : documents) {
+			long id = idCreator.nextId();
+			int shard = shardOf(id);
+			docsByShard.computeIfAbsent(shard, k -> new ArrayList<Document>()).add(doc);
+			idsByShard.computeIfAbsent(shard, k -> new ArrayList<Long>()).add(id);
+			registerFields(doc);
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		docsByShard.forEach((shard, docs) -> tasks.add(() -> {
+			Iterator<Long> ids = idsByShard.get(shard).iterator();
+			shards[shard].index(docs, ids::next);
+			return null;
+		}));
+		invokeAll(tasks);
+		metrics.indexed(documents.size());
+	}
+
+	/**
+	 * 添加一个文档进索引
+	 * @param document 新增的文档，执行后，document中会添加id属性
+	 * @return 新增文档ID_NAME Field中的值
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public long create(Document document) throws IOException {
+		long id = idCreator.nextId();
+		shards[shardOf(id)].create(document, id);
+		registerFields(document);
+		metrics.indexed(1);
+		return id;
+	}
+
+	/**
+	 * 根据ID_NAME Field中的值，获取文档
+	 * @param id ID_NAME Field中的值，能唯一标识这个文档
+	 * @return lucene中的文档，若未查找到，则返回null
+	 */
+	public Document read(long id) {
+		return shards[shardOf(id)].read(id);
+	}
+
+	/**
+	 * 一次获取多个文档，各分片上的id在一次定位中查找
+	 * @param ids ID_NAME Field中的值
+	 * @return 以id为键，按ids的顺序排列，未查找到的id不在其中
+	 */
+	public Map<Long, Document> readAll(long... ids) {
+		return readAll(null, ids);
+	}
+
+	/**
+	 * 一次获取多个文档，只加载指定的存储域
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @param ids ID_NAME Field中的值
+	 * @return 以id为键，按ids的顺序排列，未查找到的id不在其中
+	 */
+	public Map<Long, Document> readAll(Set<String> fieldsToLoad, long... ids) {
+		Map<Integer, List<Long>> idsByShard = new HashMap<Integer, List<Long>>();
+		for (long id : ids) {
+			idsByShard.computeIfAbsent(shardOf(id), k -> new ArrayList<Long>()).add(id);
+		}
+		Map<Long, Document> found = new HashMap<Long, Document>();
+		idsByShard.forEach((shard, shardIds) -> found.putAll(
+				shards[shard].readAll(fieldsToLoad, shardIds.stream().mapToLong(Long::longValue).toArray())));
+		Map<Long, Document> documents = new LinkedHashMap<Long, Document>();
+		for (long id : ids) {
+			Document doc = found.get(id);
+			if (doc != null) {
+				documents.put(id, doc);
+			}
+		}
+		return documents;
+	}
+
+	/**
+	 * 获取该文档的id
+	 * @param document 查询该文档的id
+	 * @return 若没有ID_NAME Field这个字段，或该字段的值不是Long类型，则返回0
+	 */
+	public long getId(Document document) {
+		return shards[0].getId(document);
+	}
+
+	/**
+	 * 更新索引，新id可能落在另一个分片上，此时先在新分片添加再从原分片删除，两步之间短暂地能搜到新旧两个文档。
+	 * 若从原分片删除失败，则撤销新分片中添加的文档后再抛出异常，索引中仍只保留原文档
+	 *
+	 * @param id ID_NAME Field中的值，能唯一标识这个文档
+	 * @param document 更新的文档，执行后，document中会添加id属性
+	 * @return 新增文档ID_NAME Field中的值
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public long update(long id, Document document) throws IOException {
+		long newId = idCreator.nextId();
+		int from = shardOf(id), to = shardOf(newId);
+		if (from == to) {
+			shards[from].update(id, document, newId);
+		} else {
+			shards[to].create(document, newId);
+			try {
+				shards[from].delete(id);
+			} catch (IOException | RuntimeException e) {
+				try {
+					shards[to].delete(newId);
+				} catch (IOException | RuntimeException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+		}
+		registerFields(document);
+		metrics.indexed(1);
+		return newId;
+	}
+
+	/**
+	 * 在索引中删除一个文档
+	 *
+	 * @param id ID_NAME Field中的值，能唯一标识这个文档
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public void delete(long id) throws IOException {
+		shards[shardOf(id)].delete(id);
+	}
+
+	/**
+	 * 查询前100个文档
+	 * @param query 结构化的查询参数
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public LuceneFacade.Result search(Query query) throws IOException {
+		return search(query, 0, 100, null, null);
+	}
+
+	/**
+	 * 分段查询
+	 * @param query 结构化的查询参数
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public LuceneFacade.Result search(Query query, int offset, int size) throws IOException {
+		return search(query, offset, size, null, null);
+	}
+
+	/**
+	 * 排序的分段查询
+	 * @param query 结构化的查询参数
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @param sort 排序方式，为null时按相关度排序
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public LuceneFacade.Result search(Query query, int offset, int size, Sort sort) throws IOException {
+		return search(query, offset, size, sort, null);
+	}
+
+	/**
+	 * 在所有分片上并行地查询前offset + size个命中，归并后只加载本页文档中指定的存储域。
+	 * 直接使用各分片的搜索器，不经过分片的结果缓存，耗时记录在本类的getMetrics中
+	 * <p>按相关度排序时各分片以自己的IDF打分，排名可能与单个索引不同</p>
+	 *
+	 * @param query 结构化的查询参数
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @param sort 排序方式，为null时按相关度排序
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 * @throws IOException 来自底层的输入输出异常
+	 * @throws IllegalArgumentException offset为负数或size不为正数
+	 */
+	public LuceneFacade.Result search(Query query, int offset, int size, Sort sort, Set<String> fieldsToLoad) throws IOException {
+		if (offset < 0 || size <= 0) {
+			throw new IllegalArgumentException("offset must not be negative and size must be positive");
+		}
+		long start = System.nanoTime();
+		int numHits = (int) Math.min(Integer.MAX_VALUE, (long) offset + size);
+		IndexSearcher[] searchers = new IndexSearcher[shards.length];
+		try {
+			List<Callable<TopDocs>> tasks = new ArrayList<Callable<TopDocs>>();
+			for (int i = 0; i < shards.length; i++) {
+				IndexSearcher searcher = searchers[i] = shards[i].acquire();
+				tasks.add(() -> sort == null ? searcher.search(query, numHits) : searcher.search(query, numHits, sort));
+			}
+			List<TopDocs> shardHits = invokeAll(tasks);
+			TopDocs merged;
+			if (sort == null) {
+				merged = TopDocs.merge(numHits, shardHits.toArray(new TopDocs[shardHits.size()]));
+			} else {
+				merged = TopDocs.merge(sort, numHits, shardHits.toArray(new TopFieldDocs[shardHits.size()]));
+			}
+			LuceneFacade.Result result = new LuceneFacade.Result(merged);
+			// 归并时记录了每个命中所在的分片
+			for (int i = offset; i < merged.scoreDocs.length; i++) {
+				ScoreDoc sd = merged.scoreDocs[i];
+				IndexSearcher searcher = searchers[sd.shardIndex];
+				result.documents.add(fieldsToLoad == null ? searcher.doc(sd.doc) : searcher.doc(sd.doc, fieldsToLoad));
+			}
+			metrics.searched("search", start, result.totalHits);
+			return result;
+		} finally {
+			// 无论发生什么错误都须归还已借出的搜索器
+			for (int i = 0; i < searchers.length; i++) {
+				if (searchers[i] != null) {
+					shards[i].release(searchers[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 查询出Lucene原始的Document对象
+	 * @param queryString 查询字符串
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 */
+	public LuceneFacade.Result search(String queryString) {
+		return search(queryString, 0, 100);
+	}
+
+	/**
+	 * 分段查询出Lucene原始的Document对象
+	 *
+	 * @param queryString 查询字符串
+	 * @param offset 起始序号
+	 * @param size 每页大小
+	 * @return 搜索结果，包括总数量，最大评分以及Lucene文档集合
+	 */
+	public LuceneFacade.Result search(String queryString, int offset, int size) {
+		try {
+			// 各分片都登记了所有域名，任一分片的解析结果都适用于全部分片
+			Query query = shards[0].parse(queryString);
+			return search(query, offset, size);
+		} catch (IOException e) {
+			LOG.error("Lucene Searcher throw the Exception", e);
+			return new LuceneFacade.Result(null);
+		} catch (ParseException e) {
+			LOG.error("Query statement parsing failed", e);
+			return new LuceneFacade.Result(null);
+		}
+	}
+
+	/**
+	 * 提交所有分片上还未提交的修改
+	 *
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	public void commit() throws IOException {
+		long start = System.nanoTime();
+		for (LuceneFacade shard : shards) {
+			shard.commit();
+		}
+		metrics.committed(start);
+	}
+
+	/**
+	 * 为所有分片设置提交策略
+	 *
+	 * @param commitEveryDocs 未提交的修改达到该数量时提交，不大于0时不按数量提交
+	 * @param commitIntervalMillis 定期提交的间隔毫秒数，不大于0时不定期提交
+	 * @see LuceneFacade#setCommitPolicy(int, long)
+	 */
+	public void setCommitPolicy(int commitEveryDocs, long commitIntervalMillis) {
+		for (LuceneFacade shard : shards) {
+			shard.setCommitPolicy(commitEveryDocs, commitIntervalMillis);
+		}
+	}
+
+	/**
+	 * @param waitUntilVisible 修改后是否等待其对搜索可见
+	 * @see LuceneFacade#setWaitUntilVisible(boolean)
+	 */
+	public void setWaitUntilVisible(boolean waitUntilVisible) {
+		for (LuceneFacade shard : shards) {
+			shard.setWaitUntilVisible(waitUntilVisible);
+		}
+	}
+
+	/**
+	 * @return 分片级的运行指标：并行搜索的耗时和命中数、本类提交的耗时、添加的文档数，以及各分片索引状态之和。
+	 * 刷新耗时只在各分片的指标中
+	 */
+	public LuceneMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param shard 分片序号
+	 * @return 该分片的运行指标
+	 */
+	public LuceneMetrics getMetrics(int shard) {
+		return shards[shard].getMetrics();
+	}
+
+	/**
+	 * 让所有分片都知道文档中的域名，查询字符串才能在每个分片上按同样的域解析
+	 */
+	private void registerFields(Document document) {
+		for (IndexableField field : document.getFields()) {
+			for (LuceneFacade shard : shards) {
+				shard.registerField(field.name());
+			}
+		}
+	}
+
+	/**
+	 * 在线程池中执行任务，并按顺序返回结果
+	 */
+	private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+		try {
+			List<T> results = new ArrayList<T>();
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Shard operation interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * 关闭线程池和所有分片
+	 *
+	 * @throws IOException 来自底层的输入输出异常
+	 */
+	@Override
+	public void close() throws IOException {
+		executor.shutdown();
+		IOException first = closeAll(Arrays.asList(shards), ownedDirectories, null);
+		if (first != null) {
+			throw first;
+		}
+	}
+
+	/**
+	 * 依次关闭分片和索引目录，某个关闭失败时继续关闭其余的
+	 *
+	 * @param primary 不为null时，关闭中的异常都作为它的suppressed异常
+	 * @return primary为null时返回第一个IOException，其余的作为它的suppressed异常
+	 */
+	private static IOException closeAll(List<LuceneFacade> facades, List<Directory> directories, Exception primary) {
+		List<AutoCloseable> closeables = new ArrayList<AutoCloseable>(facades);
+		closeables.addAll(directories);
+		IOException first = null;
+		for (AutoCloseable closeable : closeables) {
+			try {
+				closeable.close();
+			} catch (Exception e) {
+				if (primary != null) {
+					primary.addSuppressed(e);
+				} else if (first == null && e instanceof IOException) {
+					first = (IOException) e;
+				} else if (first == null) {
+					first = new IOException(e);
+				} else {
+					first.addSuppressed(e);
+				}
+			}
+		}
+		return first;
+	}
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -139,13 +140,24 @@ public class TextFileSearch implements AutoCloseable {
 	 * @return lucene文档列表
 	 */
 	public List<Document> search(String queryString) {
+		return search(queryString, (Set<String>) null);
+	}
+	
+	/**
+	 * 查询出Lucene原始的Document对象，只加载指定的存储域
+	 * 
+	 * @param queryString 查询字符串
+	 * @param fieldsToLoad 只加载这些存储域，为null时加载全部
+	 * @return lucene文档列表
+	 */
+	private List<Document> search(String queryString, Set<String> fieldsToLoad) {
 		if (!StringUtils.hasText(queryString)) {
 			return new ArrayList<Document>();
 		}
 		QueryParser queryParser = new MultiFieldQueryParser(new String[] {FILE_NAME, FILE_CONTENT}, facade.analyzer);
 		try {
 			Query query = queryParser.parse(queryString);
-			return facade.search(query).documents;
+			return facade.search(query, fieldsToLoad).documents;
 		} catch (ParseException | IOException e) {
 			LOG.catching(e);
 			return new ArrayList<Document>();
@@ -230,7 +242,8 @@ public class TextFileSearch implements AutoCloseable {
 	 */
 	public Set<String> searchForFilePath(String query) {
 		Set<String> paths = new TreeSet<String>();
-		List<Document> list = search(query);
+		// 只需要路径，不必加载其他存储域
+		List<Document> list = search(query, Collections.singleton(FILE_PATH));
 		for (Document doc : list) {
 			paths.add(doc.getField(FILE_PATH).stringValue());
 		}
@@ -0,0 +1,155 @@
+package com.github.emailtohl.pad.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * 按容量淘汰最久未访问条目的线程安全缓存，也可以按条目的估算大小限制总量
+ *
+ * @author HeLei
+ *
+ * @param <K> 键的类型
+ * @param <V> 值的类型
+ */
+public class LruCache<K, V> {
+	private final int capacity;
+	private final long maxWeight;
+	private final ToLongBiFunction<? super K, ? super V> weigher;
+	/** 按访问顺序排列，最久未访问的在前 */
+	private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private long weight;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param capacity 最多缓存的条目数，超出时淘汰最久未访问的条目
+	 */
+	public LruCache(int capacity) {
+		this(capacity, Long.MAX_VALUE, (k, v) -> 0L);
+	}
+
+	/**
+	 * @param capacity 最多缓存的条目数，超出时淘汰最久未访问的条目
+	 * @param maxWeight 所有条目估算大小之和的上限，超出时淘汰最久未访问的条目，单个条目超出上限时不会被缓存
+	 * @param weigher 估算条目的大小
+	 */
+	public LruCache(int capacity, long maxWeight, ToLongBiFunction<? super K, ? super V> weigher) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("maxWeight must be positive");
+		}
+		this.capacity = capacity;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @param key 键
+	 * @return 缓存的值，不存在时返回null
+	 */
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * 获取缓存的值，不存在时计算并缓存，计算结果为null时不缓存。
+	 * 计算在锁外进行，并发时同一个键可能被计算多次。
+	 *
+	 * @param key 键
+	 * @param loader 计算值的函数
+	 * @return 缓存或计算得到的值
+	 */
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+		V value = get(key);
+		if (value != null) {
+			return value;
+		}
+		value = loader.apply(key);
+		if (value != null) {
+			put(key, value);
+		}
+		return value;
+	}
+
+	public synchronized void put(K key, V value) {
+		V old = map.put(key, value);
+		if (old != null) {
+			weight -= weigher.applyAsLong(key, old);
+		}
+		weight += weigher.applyAsLong(key, value);
+		Iterator<Map.Entry<K, V>> i = map.entrySet().iterator();
+		while ((map.size() > capacity || weight > maxWeight) && i.hasNext()) {
+			Map.Entry<K, V> eldest = i.next();
+			weight -= weigher.applyAsLong(eldest.getKey(), eldest.getValue());
+			i.remove();
+		}
+	}
+
+	public synchronized V remove(K key) {
+		V value = map.remove(key);
+		if (value != null) {
+			weight -= weigher.applyAsLong(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * 移除键满足条件的条目
+	 *
+	 * @param filter 判断键的条件
+	 */
+	public synchronized void removeIf(Predicate<? super K> filter) {
+		Iterator<Map.Entry<K, V>> i = map.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<K, V> e = i.next();
+			if (filter.test(e.getKey())) {
+				weight -= weigher.applyAsLong(e.getKey(), e.getValue());
+				i.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return 当前所有条目估算大小之和
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
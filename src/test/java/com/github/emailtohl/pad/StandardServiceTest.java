@@ -5,11 +5,14 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
 
 import org.junit.After;
@@ -44,6 +47,32 @@ public class StandardServiceTest extends TestEnvironment {
 		itemTestService.validate(i);
 	}
 
+	@Test
+	public void testValidateAll() {
+		List<Item> items = new ArrayList<Item>();
+		items.add(new Item("valid", new Date(), null));
+		items.add(new Item());
+		items.add(new Item("valid", new Date(), null));
+		items.add(new Item());
+		Map<Integer, Set<ConstraintViolation<Item>>> violations = itemTestService.validateAll(items);
+		assertEquals(2, violations.size());
+		assertTrue(violations.containsKey(1));
+		assertTrue(violations.containsKey(3));
+		assertFalse(violations.get(1).isEmpty());
+		
+		// 数量超过阈值时并行校验
+		items.clear();
+		for (int i = 0; i < 3000; i++) {
+			items.add(i % 3 == 0 ? new Item() : new Item("valid", new Date(), null));
+		}
+		violations = itemTestService.validateAll(items);
+		assertEquals(1000, violations.size());
+		violations.keySet().forEach(i -> assertEquals(0, i % 3));
+		
+		violations = itemTestService.validateAll(items, 10);
+		assertEquals(10, violations.size());
+	}
+
 	@Test
 	public void testHasText() {
 		assertFalse(itemTestService.hasText(null));
@@ -1,10 +1,19 @@
 package com.github.emailtohl.pad.jpa;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.transaction.Transactional;
 
 import org.junit.After;
@@ -12,11 +21,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 
 import com.github.emailtohl.pad.config.TestEnvironment;
 import com.github.emailtohl.pad.entities.oauth2.ClientDetails;
+import com.github.emailtohl.pad.jpa.AuditedRepository.PropertyDiff;
+import com.github.emailtohl.pad.jpa.AuditedRepository.RevHeader;
 import com.github.emailtohl.pad.jpa.AuditedRepository.RevTuple;
+import com.github.emailtohl.pad.jpa.AuditedRepository.RollbackReport;
 import com.github.emailtohl.pad.model.Item;
+import com.github.emailtohl.pad.model.Participator;
 
 @Transactional
 public class AuditedRepositoryTest extends TestEnvironment {
@@ -32,6 +47,11 @@ public class AuditedRepositoryTest extends TestEnvironment {
 	private Item orangeOutfit;
 	@Autowired
 	private ClientDetails clientDetails;
+	@Autowired
+	@Qualifier("foo")
+	private Participator foo;
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
 	
 	@Before
 	public void setUp() throws Exception {}
@@ -45,6 +65,28 @@ public class AuditedRepositoryTest extends TestEnvironment {
 		assertFalse(ls.isEmpty());
 	}
 
+	@Test
+	public void testGetRevisionsPaged() {
+		List<RevTuple<Item>> all = itemAuditedRepo.getRevisions(purpleOutfit.getId());
+		Page<RevTuple<Item>> page = itemAuditedRepo.getRevisions(purpleOutfit.getId(), PageRequest.of(0, 1));
+		assertEquals(all.size(), page.getTotalElements());
+		assertEquals(1, page.getContent().size());
+		assertEquals(all.get(0).defaultRevisionEntity.getId(), page.getContent().get(0).defaultRevisionEntity.getId());
+		page = itemAuditedRepo.getRevisions(purpleOutfit.getId(), PageRequest.of(all.size(), 1));
+		assertTrue(page.getContent().isEmpty());
+		
+		List<RevHeader> headers = itemAuditedRepo.getRevisionHeaders(purpleOutfit.getId(), null, null);
+		assertEquals(all.size(), headers.size());
+		for (int i = 0; i < headers.size(); i++) {
+			assertEquals(all.get(i).defaultRevisionEntity.getId(), headers.get(i).revision);
+			assertEquals(all.get(i).defaultRevisionEntity.getTimestamp(), headers.get(i).timestamp);
+			assertEquals(all.get(i).revisionType, headers.get(i).revisionType);
+		}
+		int first = headers.get(0).revision;
+		assertEquals(1, itemAuditedRepo.getRevisionHeaders(purpleOutfit.getId(), first, first).size());
+		assertTrue(itemAuditedRepo.getRevisionHeaders(purpleOutfit.getId(), Integer.MAX_VALUE, null).isEmpty());
+	}
+
 	@Test
 	public void testGetEntityAtRevision() {
 		List<RevTuple<Item>> ls = itemAuditedRepo.getRevisions(orangeOutfit.getId());
@@ -54,6 +96,94 @@ public class AuditedRepositoryTest extends TestEnvironment {
 		});
 	}
 
+	@Test
+	public void testBatchRevisions() {
+		List<Long> ids = Arrays.asList(orangeOutfit.getId(), purpleOutfit.getId(), -1L);
+		Map<Long, List<RevTuple<Item>>> revisions = itemAuditedRepo.getRevisions(ids);
+		assertEquals(ids, Arrays.asList(revisions.keySet().toArray()));
+		assertEquals(itemAuditedRepo.getRevisions(orangeOutfit.getId()).size(), revisions.get(orangeOutfit.getId()).size());
+		assertEquals(itemAuditedRepo.getRevisions(purpleOutfit.getId()).size(), revisions.get(purpleOutfit.getId()).size());
+		assertTrue(revisions.get(-1L).isEmpty());
+		
+		int latest = Math.max(revisions.get(orangeOutfit.getId()).get(0).defaultRevisionEntity.getId(),
+				revisions.get(purpleOutfit.getId()).get(0).defaultRevisionEntity.getId());
+		Map<Long, Item> items = itemAuditedRepo.getEntitiesAtRevision(ids, latest);
+		assertEquals(2, items.size());
+		assertEquals(purpleOutfit.getName(), items.get(purpleOutfit.getId()).getName());
+		assertEquals(orangeOutfit.getName(), items.get(orangeOutfit.getId()).getName());
+		
+		// 调用方的id类型与实体的不一致时，先转换再查询和分组
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		List<Long> intIds = (List) Arrays.asList(purpleOutfit.getId().intValue());
+		Map<Long, List<RevTuple<Item>>> byIntId = itemAuditedRepo.getRevisions(intIds);
+		assertEquals(revisions.get(purpleOutfit.getId()).size(), byIntId.get(intIds.get(0)).size());
+		assertEquals(1, itemAuditedRepo.getEntitiesAtRevision(intIds, latest).size());
+	}
+
+	@Test
+	public void testDiff() {
+		// 修订版在事务提交时才写入，故在独立的事务中修改
+		EntityManager em = entityManagerFactory.createEntityManager();
+		Item item = new Item("Green hat", new Date(), em.find(Participator.class, foo.getId()));
+		try {
+			em.getTransaction().begin();
+			em.persist(item);
+			em.getTransaction().commit();
+			em.getTransaction().begin();
+			item.setName("Green cap");
+			em.getTransaction().commit();
+			List<RevHeader> headers = itemAuditedRepo.getRevisionHeaders(item.getId(), null, null);
+			assertEquals(2, headers.size());
+			int added = headers.get(0).revision, modified = headers.get(1).revision;
+			
+			List<PropertyDiff> diffs = itemAuditedRepo.diff(item.getId(), added, modified);
+			PropertyDiff nameDiff = diffs.stream().filter(d -> "name".equals(d.property)).findFirst().get();
+			assertEquals("Green hat", nameDiff.oldValue);
+			assertEquals("Green cap", nameDiff.newValue);
+			assertFalse(diffs.stream().anyMatch(d -> "seller".equals(d.property) || "auctionEnd".equals(d.property)));
+			// 区间内没有修改，由修改标记判断，不加载历史实体
+			assertTrue(itemAuditedRepo.diff(item.getId(), modified, modified).isEmpty());
+			assertTrue(itemAuditedRepo.diff(item.getId(), modified, Integer.MAX_VALUE).isEmpty());
+		} finally {
+			em.getTransaction().begin();
+			em.remove(em.merge(item));
+			em.getTransaction().commit();
+			em.close();
+		}
+	}
+
+	@Test
+	public void testRevisionCache() {
+		itemAuditedRepo.setRevisionCacheSize(10);
+		try {
+			List<RevHeader> headers = itemAuditedRepo.getRevisionHeaders(purpleOutfit.getId(), null, null);
+			int rev = headers.get(0).revision;
+			Item first = itemAuditedRepo.getOwnPropertiesAtRevision(purpleOutfit.getId(), rev);
+			Item second = itemAuditedRepo.getOwnPropertiesAtRevision(purpleOutfit.getId(), rev);
+			assertNotSame(first, second);
+			assertEquals(first.getName(), second.getName());
+			// 只含自身属性的副本
+			assertNull(first.getSeller());
+			String name = first.getName();
+			first.setName("changed");
+			assertEquals(name, itemAuditedRepo.getOwnPropertiesAtRevision(purpleOutfit.getId(), rev).getName());
+			// 可变的值也是复制的
+			long createdOn = second.getCreatedOn().getTime();
+			second.getCreatedOn().setTime(0);
+			assertEquals(createdOn, itemAuditedRepo.getOwnPropertiesAtRevision(purpleOutfit.getId(), rev).getCreatedOn().getTime());
+			// 开启缓存不影响完整快照
+			assertNotNull(itemAuditedRepo.getEntityAtRevision(purpleOutfit.getId(), rev).getSeller());
+			
+			List<RevHeader> cached = itemAuditedRepo.getRevisionHeaders(purpleOutfit.getId(), null, rev);
+			assertEquals(1, cached.size());
+			assertEquals(cached.get(0).timestamp, itemAuditedRepo.getRevisionHeaders(purpleOutfit.getId(), null, rev).get(0).timestamp);
+			itemAuditedRepo.evictRevisions(purpleOutfit.getId());
+		} finally {
+			itemAuditedRepo.setRevisionCacheSize(0);
+			itemAuditedRepo.evictRevisions();
+		}
+	}
+
 	@Test
 	public void testRollback() {
 		List<RevTuple<ClientDetails>> ls = clientDetailsRepo.getRevisions(clientDetails.getAppId());
@@ -63,4 +193,24 @@ public class AuditedRepositoryTest extends TestEnvironment {
 		});
 	}
 
+	@Test
+	public void testRollbackAll() {
+		List<String> ids = Arrays.asList(clientDetails.getAppId(), "not exist");
+		ClientDetails current = clientDetailsRepo.find(clientDetails.getAppId());
+		String scope = current.getScope();
+		// 本事务内的修改尚未提交，不会产生新的修订版
+		current.setScope("changed scope");
+		RollbackReport<String> report = clientDetailsRepo.rollbackAll(ids, new Date());
+		assertNotNull(report.revision);
+		assertEquals(Arrays.asList(clientDetails.getAppId()), report.restored);
+		assertEquals(Arrays.asList("not exist"), report.skipped);
+		ClientDetails restored = clientDetailsRepo.find(clientDetails.getAppId());
+		assertNotSame(current, restored);
+		assertEquals(scope, restored.getScope());
+		
+		report = clientDetailsRepo.rollbackAll(ids, new Date(0));
+		assertEquals(null, report.revision);
+		assertEquals(ids, report.skipped);
+	}
+
 }
@@ -1,14 +1,26 @@
 package com.github.emailtohl.pad.jpa;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.math.BigDecimal;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.transaction.Transactional;
 
+import org.hibernate.search.jpa.Search;
+import org.hibernate.search.query.facet.Facet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -17,8 +29,13 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.github.emailtohl.pad.config.TestEnvironment;
+import com.github.emailtohl.pad.event.CreateEntityEvent;
+import com.github.emailtohl.pad.event.DeleteEntityEvent;
 import com.github.emailtohl.pad.jpa.SearchRepository;
 import com.github.emailtohl.pad.model.Bid;
 import com.github.emailtohl.pad.model.Category;
@@ -29,6 +46,10 @@ public class SearchRepositoryTest extends TestEnvironment {
 	@Autowired
 	private ItemSearchRepo itemSearchRepo;
 	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	@Autowired
 	@Qualifier("purpleOutfit")
 	private Item purpleOutfit;
 	@Autowired
@@ -59,6 +80,10 @@ public class SearchRepositoryTest extends TestEnvironment {
 		assertTrue(onFields.contains("name"));
 		assertTrue(onFields.contains("categories.name"));
 		assertTrue(onFields.contains("auctionType"));
+		// 不分词的分面域、数值域不参与关键字搜索
+		assertFalse(onFields.contains("nameFacet"));
+		assertFalse(onFields.contains("approved"));
+		assertFalse(onFields.contains("buyNowPrice"));
 	}
 
 	@Transactional
@@ -82,4 +107,239 @@ public class SearchRepositoryTest extends TestEnvironment {
 		assertTrue(ls.size() > 0);
 	}
 
+	@Transactional
+	@Test
+	public void testStartIndexing() throws Exception {
+		itemSearchRepo.startIndexing().get();
+		IndexingProgress progress = itemSearchRepo.getIndexingProgress();
+		assertNotEquals(IndexingProgress.Status.RUNNING, progress.getStatus());
+		assertNotEquals(IndexingProgress.Status.FAILED, progress.getStatus());
+		// 索引已是最新时跳过构建
+		itemSearchRepo.startIndexing().get();
+		assertTrue(progress.getStatus() == IndexingProgress.Status.SKIPPED);
+		assertTrue(itemSearchRepo.search(purpleOutfit.getName()).size() > 0);
+	}
+
+	@Test
+	public void testReconcileIndex() throws Exception {
+		itemSearchRepo.startIndexing().get();
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			Search.getFullTextEntityManager(em).purge(Item.class, purpleOutfit.getId());
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		// 缺失的索引被补建
+		itemSearchRepo.startIndexing().get();
+		IndexingProgress progress = itemSearchRepo.getIndexingProgress();
+		assertEquals(IndexingProgress.Status.DONE, progress.getStatus());
+		assertEquals(1, progress.getDocumentsAdded());
+		itemSearchRepo.startIndexing().get();
+		assertEquals(IndexingProgress.Status.SKIPPED, progress.getStatus());
+	}
+
+	@Transactional
+	@Test
+	public void testSearchProjection() {
+		Pageable pageable = PageRequest.of(0, 20);
+		Page<Map<String, Object>> page = itemSearchRepo.searchProjection(purpleOutfit.getName(), pageable, "id", "name");
+		assertTrue(page.getTotalElements() > 0);
+		Map<String, Object> row = page.getContent().stream()
+				.filter(m -> purpleOutfit.getId().equals(m.get("id"))).findFirst().get();
+		assertEquals(purpleOutfit.getName(), row.get("name"));
+		
+		Page<ItemView> views = itemSearchRepo.searchProjection(purpleOutfit.getName(), pageable, ItemView.class, "id", "name");
+		assertTrue(views.getContent().stream().anyMatch(v -> purpleOutfit.getName().equals(v.getName())));
+	}
+
+	@Transactional
+	@Test
+	public void testSearchFacets() {
+		Pageable pageable = PageRequest.of(0, 20);
+		FacetedPage<Item> page = itemSearchRepo.search(sub.getName(), pageable,
+				itemSearchRepo.discreteFacet("name", "nameFacet"),
+				itemSearchRepo.rangeFacet("priceRange", "buyNowPrice", 1000.0, 2000.0));
+		assertTrue(page.getTotalElements() > 0);
+		List<Facet> facets = page.getFacets("name");
+		assertTrue(facets.stream().anyMatch(f -> purpleOutfit.getName().equals(f.getValue()) && f.getCount() == 1));
+		facets = page.getFacets("priceRange");
+		assertEquals(page.getTotalElements(), facets.stream().mapToInt(Facet::getCount).sum());
+		assertTrue(page.getFacets("none").isEmpty());
+		
+		// 没有关键字时从数据库中分页，分面统计全部文档
+		FacetedPage<Item> all = itemSearchRepo.search("", pageable, itemSearchRepo.rangeFacet("priceRange", "buyNowPrice", 1000.0, 2000.0));
+		assertTrue(all.getTotalElements() >= page.getTotalElements());
+		assertEquals(all.getTotalElements(), all.getContent().size());
+		assertTrue(all.getFacets("priceRange").stream().mapToInt(Facet::getCount).sum() >= page.getTotalElements());
+	}
+
+	@Transactional
+	@Test
+	public void testSearchWithExample() {
+		Item example = new Item();
+		example.setCreatedOn(null);
+		example.setAuctionType(null);
+		example.setApproved(true);
+		Pageable pageable = PageRequest.of(0, 20);
+		// 只有能在索引中精确匹配的条件
+		Page<Item> page = itemSearchRepo.search(sub.getName(), example, pageable);
+		assertEquals(2, page.getTotalElements());
+		
+		// 分词的域先在索引中缩小范围，再在数据库中过滤
+		example.setName(purpleOutfit.getName());
+		page = itemSearchRepo.search(sub.getName(), example, pageable);
+		assertEquals(1, page.getTotalElements());
+		assertEquals(purpleOutfit.getId(), page.getContent().get(0).getId());
+		
+		// 无法下推的条件在数据库中过滤
+		example.setName(null);
+		example.setBuyNowPrice(purpleOutfit.getBuyNowPrice().add(BigDecimal.ONE));
+		page = itemSearchRepo.search(sub.getName(), example, pageable);
+		assertEquals(1, page.getTotalElements());
+		assertTrue(page.getContent().get(0).getBuyNowPrice().compareTo(example.getBuyNowPrice()) >= 0);
+		
+		page = itemSearchRepo.search(sub.getName(), example, PageRequest.of(0, 20, Sort.by("name")));
+		assertEquals(1, page.getTotalElements());
+		
+		example.setName("%outfit");
+		example.setBuyNowPrice(null);
+		page = itemSearchRepo.search(sub.getName(), example, PageRequest.of(1, 1));
+		assertEquals(2, page.getTotalElements());
+		assertEquals(1, page.getContent().size());
+		
+		// 按排序分块查询后在内存中归并
+		Sort byName = Sort.by(Sort.Direction.DESC, "name");
+		List<Item> all = itemSearchRepo.search(sub.getName(), example, PageRequest.of(0, 20, byName)).getContent();
+		assertEquals(2, all.size());
+		assertTrue(all.get(0).getName().compareTo(all.get(1).getName()) >= 0);
+		page = itemSearchRepo.search(sub.getName(), example, PageRequest.of(1, 1, byName));
+		assertEquals(2, page.getTotalElements());
+		assertEquals(all.get(1).getId(), page.getContent().get(0).getId());
+		
+		// null的排序在数据库和内存归并中一致
+		Sort byEnd = Sort.by(Sort.Order.asc("auctionEnd").nullsLast());
+		List<Item> ends = itemSearchRepo.search(sub.getName(), example, PageRequest.of(0, 20, byEnd)).getContent();
+		for (int i = 1; i < ends.size(); i++) {
+			if (ends.get(i - 1).getAuctionEnd() == null) {
+				assertNull(ends.get(i).getAuctionEnd());
+			}
+		}
+		page = itemSearchRepo.search(sub.getName(), example, PageRequest.of(1, 1, byEnd));
+		assertEquals(ends.get(1).getId(), page.getContent().get(0).getId());
+	}
+
+	@Transactional
+	@Test
+	public void testSearchWithHighlight() {
+		Page<Highlighted<Item>> page = itemSearchRepo.searchWithHighlight("purple", PageRequest.of(0, 20));
+		assertTrue(page.getTotalElements() > 0);
+		Highlighted<Item> h = page.getContent().stream()
+				.filter(i -> purpleOutfit.getId().equals(i.getEntity().getId())).findFirst().get();
+		assertTrue(h.getFragments().get("name")[0].contains("<b>Purple</b>"));
+		
+		Sort byEnd = Sort.by(Sort.Order.desc("auctionEnd"));
+		List<Item> sorted = itemSearchRepo.search("outfit", PageRequest.of(0, 20, byEnd)).getContent();
+		page = itemSearchRepo.searchWithHighlight("outfit", PageRequest.of(0, 20, byEnd));
+		assertEquals(sorted.size(), page.getContent().size());
+		for (int i = 0; i < sorted.size(); i++) {
+			assertEquals(sorted.get(i).getId(), page.getContent().get(i).getEntity().getId());
+			assertTrue(page.getContent().get(i).getFragments().get("name")[0].toLowerCase().contains("<b>outfit</b>"));
+		}
+	}
+
+	@Transactional
+	@Test
+	public void testSearchAfter() {
+		CursorPage<Item> page = itemSearchRepo.searchAfter("outfit", null, 1);
+		assertEquals(2, page.getTotalElements());
+		assertEquals(1, page.getContent().size());
+		assertTrue(page.hasNext());
+		Long first = page.getContent().get(0).getId();
+		page = itemSearchRepo.searchAfter("outfit", page.getAfter(), 1);
+		assertEquals(1, page.getContent().size());
+		assertNotEquals(first, page.getContent().get(0).getId());
+		page = itemSearchRepo.searchAfter("outfit", page.getAfter(), 1);
+		assertTrue(page.getContent().isEmpty());
+		assertFalse(page.hasNext());
+	}
+
+	@Test
+	public void testSuggest() {
+		itemSearchRepo.rebuildSuggester();
+		List<String> ls = itemSearchRepo.suggest("purp", 10);
+		assertTrue(ls.contains(purpleOutfit.getName()));
+		assertTrue(ls.contains(purpleOutfitBid.getName()));
+		// 匹配取值中任意词的前缀
+		ls = itemSearchRepo.suggest("outf", 10);
+		assertTrue(ls.contains(purpleOutfit.getName()));
+		assertTrue(itemSearchRepo.suggest("nothing", 10).isEmpty());
+		
+		Item item = new Item("Yellow hat", new Date(), foo);
+		itemSearchRepo.onCreateEntity(new CreateEntityEvent(item));
+		assertEquals(Arrays.asList("Yellow hat"), itemSearchRepo.suggest("yel", 10));
+		itemSearchRepo.onDeleteEntity(new DeleteEntityEvent(item));
+		assertTrue(itemSearchRepo.suggest("yel", 10).isEmpty());
+	}
+
+	@Test
+	public void testUpdateAll() {
+		// 修改在调用方的事务中进行，索引在提交时更新，故每步都在单独提交的事务中执行
+		TransactionTemplate tx = new TransactionTemplate(transactionManager);
+		assertTrue(itemSearchRepo.isReindexDirtyCheckEnabled());
+		ReindexStatistics stats = itemSearchRepo.getReindexStatistics();
+		long skipped = stats.getSkipped(), performed = stats.getPerformed(), flushes = stats.getFlushes();
+		List<Long> ids = Arrays.asList(purpleOutfit.getId(), -1L);
+		// auctionEnd未被索引，不重建索引
+		assertEquals(Integer.valueOf(1), tx.execute(s -> itemSearchRepo.updateAll(ids, item -> item.setAuctionEnd(new Date()))));
+		assertEquals(skipped + 1, stats.getSkipped());
+		assertEquals(performed, stats.getPerformed());
+		assertEquals(flushes + 1, stats.getFlushes());
+		
+		String name = purpleOutfit.getName();
+		try {
+			tx.execute(s -> itemSearchRepo.updateAll(ids, item -> item.setName("Violet outfit")));
+			assertEquals(performed + 1, stats.getPerformed());
+			assertEquals(1, tx.execute(s -> itemSearchRepo.search("violet")).size());
+			
+			// 调用方的事务回滚时，数据库和索引的修改一同回滚
+			try {
+				tx.execute(s -> {
+					itemSearchRepo.updateAll(ids, item -> item.setName("Scarlet outfit"));
+					throw new IllegalStateException();
+				});
+				fail();
+			} catch (IllegalStateException e) {
+			}
+			assertEquals(flushes + 3, stats.getFlushes());
+			assertTrue(tx.execute(s -> itemSearchRepo.search("scarlet")).isEmpty());
+			assertEquals(1, tx.execute(s -> itemSearchRepo.search("violet")).size());
+		} finally {
+			tx.execute(s -> itemSearchRepo.updateAll(ids, item -> item.setName(name)));
+		}
+		assertTrue(tx.execute(s -> itemSearchRepo.search("violet")).isEmpty());
+	}
+
+	public static class ItemView {
+		private Long id;
+		private String name;
+
+		public Long getId() {
+			return id;
+		}
+
+		public void setId(Long id) {
+			this.id = id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
 }
@@ -5,20 +5,42 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -146,6 +168,300 @@ public class LuceneFacadeTest {
 		countDownLatch.await();
 	}
 	
+	@Test
+	public void testSearchWithHighlight() throws InterruptedException {
+		FieldType type = new FieldType(TextField.TYPE_STORED);
+		type.setStoreTermVectors(true);
+		type.setStoreTermVectorPositions(true);
+		type.setStoreTermVectorOffsets(true);
+		Document doc = new Document();
+		doc.add(new Field("description", "Lucene is a high-performance, full-featured text search engine library "
+				+ "written entirely in Java. It is a technology suitable for nearly any application "
+				+ "that requires full-text search, especially cross-platform.", type));
+		try {
+			facade.create(doc);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		facade.setFragmentSize(40);
+		facade.setMaxFragments(2);
+		Result r = facade.searchWithHighlight("technology", 0, 10);
+		assertEquals(r.documents.size(), r.fragments.size());
+		assertTrue(r.fragments.stream().anyMatch(m -> m.containsKey("description")
+				&& m.get("description")[0].contains("<b>technology</b>")
+				&& m.get("description")[0].length() < 80));
+		try {
+			facade.searchWithHighlight("technology", -1, 10);
+			fail();
+		} catch (IllegalArgumentException e) {}
+		countDownLatch.await();
+	}
+
+	@Test
+	public void testSearchAfter() throws InterruptedException {
+		countDownLatch.await();
+		Set<Long> found = new HashSet<Long>();
+		Result page = facade.searchAfter("CA", null, 2);
+		int totalHits = page.totalHits;
+		while (true) {
+			for (Document doc : page.documents) {
+				assertTrue(found.add(facade.getId(doc)));
+			}
+			if (page.after == null) {
+				break;
+			}
+			page = facade.searchAfter("CA", page.after, 2);
+		}
+		assertEquals(totalHits, found.size());
+	}
+
+	@Test
+	public void testConcurrentSearchAndWrite() throws Exception {
+		countDownLatch.await();
+		int before = facade.search("Apple").totalHits;
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < 4; i++) {
+				futures.add(exec.submit(() -> {
+					// 搜索不等待写入，每次搜索都能在某个一致的快照上完成
+					for (int j = 0; j < 50; j++) {
+						assertTrue(facade.search("Apple").totalHits >= before);
+					}
+				}));
+			}
+			for (int i = 0; i < 20; i++) {
+				Document doc = new Document();
+				doc.add(new TextField(field_name, "Apple", Store.NO));
+				facade.create(doc);
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			exec.shutdown();
+		}
+		assertEquals(before + 20, facade.search("Apple").totalHits);
+	}
+
+	@Test
+	public void testCommitPolicy() throws Exception {
+		countDownLatch.await();
+		RAMDirectory dir = new RAMDirectory();
+		try (LuceneFacade f = new LuceneFacade(dir)) {
+			f.setCommitPolicy(0, 0);
+			f.setWaitUntilVisible(false);
+			for (int i = 0; i < 500; i++) {
+				f.create(createDocument());
+			}
+			// 等待此前的修改对搜索可见
+			f.waitForGeneration(f.getGeneration());
+			assertEquals(500, f.search(new MatchAllDocsQuery()).totalHits);
+			// 还未提交，索引目录中看不到
+			assertFalse(DirectoryReader.indexExists(dir));
+			f.commit();
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				assertEquals(500, reader.numDocs());
+			}
+			
+			f.setCommitPolicy(100, 0);
+			for (int i = 0; i < 150; i++) {
+				f.create(createDocument());
+			}
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				assertEquals(600, reader.numDocs());
+			}
+		}
+	}
+
+	@Test
+	public void testDeepPaging() throws Exception {
+		countDownLatch.await();
+		try (LuceneFacade f = new LuceneFacade()) {
+			List<Document> documents = new ArrayList<Document>();
+			for (int i = 0; i < 150; i++) {
+				Document doc = new Document();
+				doc.add(new StringField("kind", "page", Store.NO));
+				documents.add(doc);
+			}
+			f.index(documents);
+			TermQuery query = new TermQuery(new Term("kind", "page"));
+			// 超过原来默认的100个命中
+			Result page = f.search(query, 120, 10);
+			assertEquals(150, page.totalHits);
+			assertEquals(10, page.documents.size());
+			assertEquals(5, f.search(query, 145, 10).documents.size());
+			assertTrue(f.search(query, 200, 10).documents.isEmpty());
+			assertTrue(f.search(query, Integer.MAX_VALUE - 5, 10).documents.isEmpty());
+			
+			page = f.search(query, 100, 50, LuceneFacade.NEWEST_FIRST);
+			assertEquals(50, page.documents.size());
+			long last = Long.MAX_VALUE;
+			for (Document doc : page.documents) {
+				long time = doc.getField(LuceneFacade.CREATION_TIME).numericValue().longValue();
+				assertTrue(time <= last);
+				last = time;
+			}
+		}
+	}
+
+	@Test
+	public void testIndexAll() throws Exception {
+		countDownLatch.await();
+		RAMDirectory dir = new RAMDirectory();
+		try (LuceneFacade f = new LuceneFacade(dir)) {
+			LuceneFacade.BulkResult result = f.indexAll(IntStream.range(0, 2000).mapToObj(i -> createDocument()));
+			assertEquals(2000, result.documents);
+			assertTrue(result.getDocsPerSecond() > 0);
+			assertEquals(2000, f.search(new MatchAllDocsQuery()).totalHits);
+			// 结束时已提交
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				assertEquals(2000, reader.numDocs());
+			}
+			Set<Long> bulkIds = new HashSet<Long>();
+			for (Document doc : f.search(new MatchAllDocsQuery(), 0, 2000).documents) {
+				bulkIds.add(f.getId(doc));
+			}
+			assertEquals(2000, bulkIds.size());
+		}
+	}
+
+	@Test
+	public void testQueryCache() throws Exception {
+		countDownLatch.await();
+		assertEquals(facade.search("Apple").totalHits, facade.search("Apple").totalHits);
+		assertEquals(0, facade.search("crimson").totalHits);
+		// 出现新的域后，相同的查询字符串会在新的域中查询
+		Document doc = new Document();
+		doc.add(new TextField("color", "crimson", Store.NO));
+		facade.create(doc);
+		assertEquals(1, facade.search("crimson").totalHits);
+		
+		facade.setQueryCacheSize(0);
+		assertEquals(1, facade.search("crimson").totalHits);
+		assertEquals(0, facade.search("crimson AND").totalHits);
+	}
+
+	@Test
+	public void testReadAll() throws Exception {
+		countDownLatch.await();
+		long[] ids = new long[5];
+		for (int i = 0; i < ids.length; i++) {
+			Document doc = new Document();
+			doc.add(new StringField(field_name, "name" + i, Store.YES));
+			doc.add(new StringField(field_address, "address" + i, Store.YES));
+			ids[i] = facade.create(doc);
+		}
+		facade.delete(ids[1]);
+		Map<Long, Document> docs = facade.readAll(ids[4], ids[0], ids[1], -1L, ids[2]);
+		assertEquals(Arrays.asList(ids[4], ids[0], ids[2]), new ArrayList<Long>(docs.keySet()));
+		assertEquals("name4", docs.get(ids[4]).get(field_name));
+		assertEquals(ids[4], facade.getId(docs.get(ids[4])));
+		
+		Set<String> fieldsToLoad = new HashSet<String>(Arrays.asList(LuceneFacade.ID_NAME, field_name));
+		Document doc = facade.read(ids[3], fieldsToLoad);
+		assertEquals("name3", doc.get(field_name));
+		assertNull(doc.get(field_address));
+		assertEquals(ids[3], facade.getId(doc));
+		assertTrue(facade.readAll().isEmpty());
+	}
+
+	@Test
+	public void testFieldsToLoad() throws Exception {
+		countDownLatch.await();
+		Document doc = new Document();
+		doc.add(new StringField("kind", "selective", Store.NO));
+		doc.add(new StringField(field_name, "name", Store.YES));
+		doc.add(new StringField(field_address, "address", Store.YES));
+		long id = facade.create(doc);
+		TermQuery query = new TermQuery(new Term("kind", "selective"));
+		
+		Document loaded = facade.search(query, Collections.singleton(field_name)).documents.get(0);
+		assertEquals("name", loaded.get(field_name));
+		assertNull(loaded.get(field_address));
+		loaded = facade.search(query, 0, 10, null, Collections.singleton(field_address)).documents.get(0);
+		assertNull(loaded.get(field_name));
+		assertEquals("address", loaded.get(field_address));
+		
+		// 只读取DocValues
+		Document values = facade.searchDocValues(query, 0, 10, null, LuceneFacade.ID_NAME, LuceneFacade.CREATION_TIME, field_name).documents.get(0);
+		assertEquals(id, facade.getId(values));
+		assertNotNull(values.getField(LuceneFacade.CREATION_TIME).numericValue());
+		assertNull(values.get(field_name));
+	}
+
+	@Test
+	public void testResultCache() throws Exception {
+		countDownLatch.await();
+		facade.setResultCache(100, 1 << 20);
+		TermQuery query = new TermQuery(new Term("kind", "cached"));
+		assertEquals(0, facade.search(query).totalHits);
+		Result r = facade.search(query);
+		assertEquals(0, r.totalHits);
+		assertEquals(1, facade.getResultCacheHits());
+		assertEquals(1, facade.getResultCacheMisses());
+		// 修改调用方拿到的结果，不影响缓存
+		r.documents.add(new Document());
+		assertTrue(facade.search(query).documents.isEmpty());
+		
+		// 索引变更后，缓存的结果失效
+		Document doc = new Document();
+		doc.add(new StringField("kind", "cached", Store.NO));
+		facade.create(doc);
+		assertEquals(1, facade.search(query).totalHits);
+		assertEquals(2, facade.getResultCacheHits());
+		assertEquals(2, facade.getResultCacheMisses());
+		// 命中缓存时文档重新加载，修改返回的文档不影响之后的结果
+		facade.search(query).documents.get(0).add(new StringField("mutated", "yes", Store.NO));
+		assertNull(facade.search(query).documents.get(0).get("mutated"));
+		assertEquals(4, facade.getResultCacheHits());
+		
+		facade.setResultCache(0, 0);
+		assertEquals(1, facade.search(query).totalHits);
+		assertEquals(0, facade.getResultCacheHits());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		countDownLatch.await();
+		ObjectName name = new ObjectName("com.github.emailtohl.pad.lucene:type=LuceneFacade,name=\"metrics-test\"");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try (LuceneFacade f = new LuceneFacade()) {
+			f.index(getDocuments());
+			long id = f.create(createDocument());
+			f.delete(id);
+			f.search(new MatchAllDocsQuery());
+			f.read(1L);
+			LuceneMetrics metrics = f.getMetrics();
+			assertEquals(Long.valueOf(1), metrics.getSearchCounts().get("search"));
+			assertEquals(1, metrics.getSearchLatency("readAll").getCount());
+			assertTrue(metrics.getMeanHitsPerQuery() > 0);
+			assertEquals(getDocuments().size() + 1, metrics.getIndexedDocs());
+			assertEquals(3, metrics.getCommitCount());
+			assertTrue(metrics.getRefreshCount() > 0);
+			assertTrue(metrics.getSegmentCount() > 0);
+			
+			f.registerMBean("metrics-test");
+			// 以同一名字重新注册不会冲突
+			f.registerMBean("metrics-test");
+			assertEquals(metrics.getNumDocs(), server.getAttribute(name, "NumDocs"));
+		}
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testDirectoryType() throws Exception {
+		countDownLatch.await();
+		for (DirectoryType type : DirectoryType.values()) {
+			try (LuceneFacade f = new LuceneFacade(type)) {
+				f.index(getDocuments());
+				long id = f.create(createDocument());
+				assertNotNull(f.read(id));
+				assertEquals(getDocuments().size() + 1, f.search(new MatchAllDocsQuery()).totalHits);
+			}
+		}
+	}
+
 	private List<Document> getDocuments() {
 		List<Document> documents = new ArrayList<Document>();
 		Document doc = new Document();
@@ -0,0 +1,109 @@
+package com.github.emailtohl.pad.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.emailtohl.pad.lucene.LuceneFacade.Result;
+
+public class ShardedLuceneFacadeTest {
+	private ShardedLuceneFacade facade;
+
+	@Before
+	public void setUp() throws Exception {
+		facade = new ShardedLuceneFacade(4);
+		List<Document> documents = new ArrayList<Document>();
+		for (int i = 0; i < 200; i++) {
+			documents.add(createDocument(i));
+		}
+		facade.index(documents);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		facade.close();
+	}
+
+	private Document createDocument(int i) {
+		Document doc = new Document();
+		doc.add(new StringField("kind", i % 2 == 0 ? "even" : "odd", Store.YES));
+		doc.add(new TextField("content", "shard document " + i, Store.YES));
+		return doc;
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		Result result = facade.search(new MatchAllDocsQuery(), 0, 300);
+		assertEquals(200, result.totalHits);
+		Set<Long> ids = new HashSet<Long>();
+		for (Document doc : result.documents) {
+			ids.add(facade.getId(doc));
+		}
+		assertEquals(200, ids.size());
+		// 文档分布到了每个分片上
+		Set<Integer> shards = new HashSet<Integer>();
+		ids.forEach(id -> shards.add(facade.shardOf(id)));
+		assertEquals(facade.getShardCount(), shards.size());
+
+		// 跨分片的深度分页
+		TermQuery even = new TermQuery(new Term("kind", "even"));
+		assertEquals(100, facade.search(even).totalHits);
+		assertEquals(10, facade.search(even, 90, 20).documents.size());
+
+		// 按创建时间倒序归并
+		result = facade.search(new MatchAllDocsQuery(), 0, 50, LuceneFacade.NEWEST_FIRST);
+		long last = Long.MAX_VALUE;
+		for (Document doc : result.documents) {
+			long time = doc.getField(LuceneFacade.CREATION_TIME).numericValue().longValue();
+			assertTrue(time <= last);
+			last = time;
+		}
+
+		assertEquals(200, facade.search("document").totalHits);
+
+		// 分片级的指标记录并行搜索，索引状态是各分片之和
+		LuceneMetrics metrics = facade.getMetrics();
+		assertEquals(Long.valueOf(5), metrics.getSearchCounts().get("search"));
+		assertEquals(200, metrics.getIndexedDocs());
+		assertEquals(200, metrics.getNumDocs());
+	}
+
+	@Test
+	public void testCRUD() throws Exception {
+		long id = facade.create(createDocument(1000));
+		Document doc = facade.read(id);
+		assertNotNull(doc);
+		assertEquals("shard document 1000", doc.get("content"));
+
+		long newId = facade.update(id, createDocument(1001));
+		assertNull(facade.read(id));
+		assertEquals("shard document 1001", facade.read(newId).get("content"));
+		assertEquals(201, facade.search(new MatchAllDocsQuery()).totalHits);
+
+		Map<Long, Document> docs = facade.readAll(newId, id);
+		assertEquals(1, docs.size());
+		assertTrue(docs.containsKey(newId));
+
+		facade.delete(newId);
+		assertNull(facade.read(newId));
+		assertEquals(200, facade.search(new MatchAllDocsQuery()).totalHits);
+	}
+}
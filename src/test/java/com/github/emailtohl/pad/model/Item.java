@@ -27,11 +27,17 @@ import javax.persistence.SqlResultSetMappings;
 import javax.validation.constraints.NotNull;
 
 import org.hibernate.envers.Audited;
+import org.hibernate.search.annotations.Analyze;
 import org.hibernate.search.annotations.ContainedIn;
+import org.hibernate.search.annotations.Facet;
+import org.hibernate.search.annotations.FacetEncodingType;
 import org.hibernate.search.annotations.Field;
 import org.hibernate.search.annotations.FieldBridge;
+import org.hibernate.search.annotations.Fields;
 import org.hibernate.search.annotations.Indexed;
 import org.hibernate.search.annotations.IndexedEmbedded;
+import org.hibernate.search.annotations.Store;
+import org.hibernate.search.annotations.TermVector;
 import org.springframework.format.annotation.DateTimeFormat;
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
@@ -79,7 +85,7 @@ import com.github.emailtohl.pad.jpa.StringBridgeCustomization;
         )
     )
 })
-@Audited
+@Audited(withModifiedFlag = true)
 @Indexed
 @Entity
 public class Item extends EntityBase {
@@ -119,7 +125,8 @@ public class Item extends EntityBase {
         this.seller = seller;
     }
 
-    @Field
+    @Fields({ @Field(store = Store.YES, termVector = TermVector.WITH_POSITION_OFFSETS), @Field(name = "nameFacet", analyze = Analyze.NO) })
+    @Facet(forField = "nameFacet")
     @Basic
     public String getName() {
         return name;
@@ -159,6 +166,7 @@ public class Item extends EntityBase {
         this.auctionType = auctionType;
     }
 
+    @Field(analyze = Analyze.NO, bridge = @FieldBridge(impl = StringBridgeCustomization.class))
     public boolean isApproved() {
         return approved;
     }
@@ -167,6 +175,8 @@ public class Item extends EntityBase {
         this.approved = approved;
     }
 
+    @Facet(encoding = FacetEncodingType.DOUBLE)
+    @Field(analyze = Analyze.NO, bridge = @FieldBridge(impl = StringBridgeCustomization.class))
     @Instruction(operator = Operator.GTE)
     public BigDecimal getBuyNowPrice() {
         return buyNowPrice;
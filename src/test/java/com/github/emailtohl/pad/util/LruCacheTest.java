@@ -0,0 +1,77 @@
+package com.github.emailtohl.pad.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LruCacheTest {
+
+	@Test
+	public void testEviction() {
+		LruCache<Integer, String> cache = new LruCache<Integer, String>(2);
+		cache.put(1, "a");
+		cache.put(2, "b");
+		// 访问1后，2成为最久未访问的条目
+		assertEquals("a", cache.get(1));
+		cache.put(3, "c");
+		assertEquals(2, cache.size());
+		assertNull(cache.get(2));
+		assertEquals("a", cache.get(1));
+		assertEquals("c", cache.get(3));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testComputeIfAbsent() {
+		LruCache<Integer, String> cache = new LruCache<Integer, String>(10);
+		AtomicInteger loads = new AtomicInteger();
+		assertEquals("1", cache.computeIfAbsent(1, k -> {
+			loads.incrementAndGet();
+			return String.valueOf(k);
+		}));
+		assertEquals("1", cache.computeIfAbsent(1, k -> {
+			loads.incrementAndGet();
+			return String.valueOf(k);
+		}));
+		assertEquals(1, loads.get());
+		// 结果为null时不缓存
+		assertNull(cache.computeIfAbsent(2, k -> null));
+		assertEquals(1, cache.size());
+
+		cache.put(3, "3");
+		cache.removeIf(k -> k > 1);
+		assertEquals(1, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testWeight() {
+		LruCache<Integer, String> cache = new LruCache<Integer, String>(10, 5, (k, v) -> v.length());
+		cache.put(1, "ab");
+		cache.put(2, "cd");
+		assertEquals(4, cache.getWeight());
+		cache.get(1);
+		// 超出总量，淘汰最久未访问的2
+		cache.put(3, "ef");
+		assertEquals(2, cache.size());
+		assertNull(cache.get(2));
+		assertEquals(4, cache.getWeight());
+		// 单个条目超出总量时不缓存
+		cache.put(4, "abcdef");
+		assertNull(cache.get(4));
+		assertEquals(0, cache.getWeight());
+		cache.put(5, "a");
+		cache.remove(5);
+		assertEquals(0, cache.getWeight());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCapacity() {
+		new LruCache<Integer, String>(0);
+	}
+}